@@ -0,0 +1,254 @@
+/*
+ * AnyTipObservationProcessBenchmark.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.MutationDeathModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Benchmarks of the AnyTip observation process under the proposals of a
+ * typical MCMC run. Before each invocation of a proposal benchmark, the
+ * {@link Step} fixture stores, proposes and calls requiresRecalculation;
+ * after it, it rejects. Only the calculation itself is measured. The
+ * rejection returns to the same state, so every invocation starts from the
+ * same tree and parameters. Per-invocation fixtures add timer overhead,
+ * which matters only for the smallest shapes.
+ *
+ * Run with "ant bench"; JMH options, e.g. "-p shape=2000x50000" for other
+ * tree and alignment sizes, can be passed with -Dbench.args=.... With one
+ * rate category, the partials and caches need about 52 bytes per node and
+ * pattern: 32 for the partials, 16 for the site likelihoods and 4 for the
+ * tip counts, each with its backup. singlePrecision saves 8 of them, and
+ * mrcaPaths the tip counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class AnyTipObservationProcessBenchmark {
+
+	/** tips x patterns */
+	@Param({ "100x1000", "100x200000", "1000x20000", "5000x1000" })
+	public String shape;
+
+	@Param({ "branchLength", "topology", "mu", "lam" })
+	public String proposal;
+
+	private Tree tree;
+	private RealParameter mu;
+	private RealParameter lam;
+	private AnyTipObservationProcess process;
+	private Random random;
+
+	@Setup
+	public void setUp() {
+		final String[] size = shape.split("x");
+		random = new Random(42);
+		tree = SyntheticDolloData.randomTree(Integer.parseInt(size[0]), random);
+		Alignment alignment = SyntheticDolloData.cladeAlignment(tree, Integer.parseInt(size[1]), 0.7, random);
+
+		mu = new RealParameter(new Double[] { 0.5 });
+		lam = new RealParameter(new Double[] { 1.0 });
+		Frequencies freq = new Frequencies();
+		freq.initByName("frequencies", new RealParameter(new Double[] { 0.5, 0.5 }));
+		MutationDeathModel subst = new MutationDeathModel();
+		subst.initByName("frequencies", freq, "deathprob", new RealParameter(new Double[] { 1e-11 }));
+		SiteModel sites = new SiteModel();
+		sites.initByName("shape", "1.0", "substModel", subst);
+
+		process = new AnyTipObservationProcess();
+		process.initByName("tree", tree, "data", alignment, "siteModel", sites, "branchRateModel",
+				new StrictClockModel(), "mu", mu, "lam", lam, "integrateGainRate", true);
+		process.calculateLogP();
+		clean();
+	}
+
+	/**
+	 * One MCMC step around each invocation of a proposal benchmark.
+	 */
+	@State(Scope.Thread)
+	public static class Step {
+		private AnyTipObservationProcessBenchmark benchmark;
+
+		@Setup(Level.Trial)
+		public void setUp(AnyTipObservationProcessBenchmark benchmark) {
+			this.benchmark = benchmark;
+		}
+
+		@Setup(Level.Invocation)
+		public void propose() {
+			benchmark.propose();
+		}
+
+		@TearDown(Level.Invocation)
+		public void reject() {
+			benchmark.reject();
+		}
+	}
+
+	@Benchmark
+	public double calculateLogP(Step step) {
+		return process.calculateLogP();
+	}
+
+	@Benchmark
+	public double calculateLogTreeWeight(Step step) {
+		return process.calculateLogTreeWeight();
+	}
+
+	@Benchmark
+	public AbstractObservationProcess setNodePatternInclusion(Step step) {
+		process.setNodePatternInclusion();
+		return process;
+	}
+
+	/**
+	 * A whole rejected step: store, proposal, calculation and restore. Less
+	 * {@link #calculateLogP(Step)}, this is what storing and restoring the
+	 * caches around a proposal costs.
+	 */
+	@Benchmark
+	public double rejectedStep() {
+		propose();
+		final double logP = process.calculateLogP();
+		reject();
+		return logP;
+	}
+
+	private void propose() {
+		tree.store();
+		mu.store();
+		lam.store();
+		process.store();
+		if (proposal.equals("branchLength")) {
+			proposeHeight();
+		} else if (proposal.equals("topology")) {
+			proposeNarrowExchange();
+		} else if (proposal.equals("mu")) {
+			scale(mu);
+		} else if (proposal.equals("lam")) {
+			scale(lam);
+		} else {
+			throw new IllegalArgumentException("Unknown proposal " + proposal);
+		}
+		process.requiresRecalculation();
+	}
+
+	private void reject() {
+		tree.restore();
+		mu.restore();
+		lam.restore();
+		process.restore();
+		clean();
+	}
+
+	private void clean() {
+		tree.setEverythingDirty(false);
+		mu.setEverythingDirty(false);
+		lam.setEverythingDirty(false);
+	}
+
+	private void scale(RealParameter parameter) {
+		parameter.setValue(0, parameter.getValue(0) * Math.exp(random.nextDouble() - 0.5));
+	}
+
+	/**
+	 * Move the height of a random internal node uniformly between its oldest
+	 * child and its parent.
+	 */
+	private void proposeHeight() {
+		Node node = randomInternalNode();
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		double upper = node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+		tree.setSomethingIsDirty(true);
+	}
+
+	/**
+	 * Swap a random node with its parent's sibling, as the narrow exchange
+	 * operator does.
+	 */
+	private void proposeNarrowExchange() {
+		final int maxAttempts = 100 * tree.getNodeCount();
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			Node parent = randomInternalNode();
+			Node grandParent = parent.getParent();
+			Node uncle = (grandParent.getLeft() == parent ? grandParent.getRight() : grandParent.getLeft());
+			if (uncle.getHeight() >= parent.getHeight()) {
+				continue;
+			}
+			Node node = (random.nextBoolean() ? parent.getLeft() : parent.getRight());
+			parent.removeChild(node);
+			grandParent.removeChild(uncle);
+			parent.addChild(uncle);
+			grandParent.addChild(node);
+			tree.setSomethingIsDirty(true);
+			return;
+		}
+		throw new IllegalStateException("No narrow exchange found in " + maxAttempts + " attempts");
+	}
+
+	/**
+	 * @return a uniformly chosen node that is neither a tip nor the root
+	 */
+	private Node randomInternalNode() {
+		final int tipCount = tree.getLeafNodeCount();
+		if (tree.getInternalNodeCount() < 2) {
+			throw new IllegalStateException("The tree has no internal node below the root");
+		}
+		int nr = tipCount + random.nextInt(tree.getInternalNodeCount() - 1);
+		if (nr >= tree.getRoot().getNr()) {
+			nr++;
+		}
+		return tree.getNode(nr);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * SyntheticDolloData.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+/**
+ * Random trees and cognate alignments for the benchmarks, generated from a
+ * fixed seed so that results are comparable between releases.
+ */
+public class SyntheticDolloData {
+
+	/**
+	 * @return a random coalescent tree with tips t0, t1, ...
+	 */
+	public static Tree randomTree(int tipCount, Random random) {
+		List<String> subtrees = new ArrayList<String>(tipCount);
+		List<Double> heights = new ArrayList<Double>(tipCount);
+		for (int i = 0; i < tipCount; i++) {
+			subtrees.add("t" + i);
+			heights.add(0.0);
+		}
+		double height = 0.0;
+		while (subtrees.size() > 1) {
+			final int lineages = subtrees.size();
+			height += -Math.log(random.nextDouble()) * 2.0 / (lineages * (lineages - 1));
+			final int a = random.nextInt(lineages);
+			final String left = subtrees.get(a) + ":" + (height - heights.get(a));
+			removeSwapLast(subtrees, a);
+			removeSwapLast(heights, a);
+			final int b = random.nextInt(lineages - 1);
+			final String right = subtrees.get(b) + ":" + (height - heights.get(b));
+			subtrees.set(b, "(" + left + "," + right + ")");
+			heights.set(b, height);
+		}
+		return new TreeParser(subtrees.get(0) + ";");
+	}
+
+	private static <T> void removeSwapLast(List<T> list, int index) {
+		list.set(index, list.get(list.size() - 1));
+		list.remove(list.size() - 1);
+	}
+
+	/**
+	 * @return an alignment of patternCount distinct patterns with the taxa of
+	 *         the tips of tree. Each pattern is gained at a random node and
+	 *         present in each tip below it with probability survival, and in
+	 *         at least one of them. Patterns that come up repeatedly only
+	 *         increase their weight.
+	 */
+	public static Alignment cladeAlignment(Tree tree, int patternCount, double survival, Random random) {
+		final int tipCount = tree.getLeafNodeCount();
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		// codes of the extantCode data type: 0 is present, 1 is absent
+		final int present = 0;
+		final int absent = 1;
+
+		Map<PatternKey, Integer> index = new HashMap<PatternKey, Integer>();
+		List<int[]> patterns = new ArrayList<int[]>();
+		List<Integer> weights = new ArrayList<Integer>();
+		List<Integer> below = new ArrayList<Integer>();
+		Deque<Node> stack = new ArrayDeque<Node>();
+		final long maxAttempts = 100L * patternCount;
+		for (long attempt = 0; patterns.size() < patternCount; attempt++) {
+			if (attempt == maxAttempts) {
+				throw new IllegalArgumentException("Could not generate " + patternCount
+						+ " distinct patterns on a tree with " + tipCount + " tips");
+			}
+			below.clear();
+			stack.push(tree.getNode(random.nextInt(tree.getNodeCount())));
+			while (!stack.isEmpty()) {
+				Node node = stack.pop();
+				if (node.isLeaf()) {
+					below.add(node.getNr());
+				} else {
+					for (Node child : node.getChildren()) {
+						stack.push(child);
+					}
+				}
+			}
+			int[] pattern = new int[tipCount];
+			Arrays.fill(pattern, absent);
+			pattern[below.get(random.nextInt(below.size()))] = present;
+			for (int tip : below) {
+				if (random.nextDouble() < survival) {
+					pattern[tip] = present;
+				}
+			}
+			PatternKey key = new PatternKey(pattern);
+			Integer patternIndex = index.get(key);
+			if (patternIndex == null) {
+				index.put(key, patterns.size());
+				patterns.add(pattern);
+				weights.add(1);
+			} else {
+				weights.set(patternIndex, weights.get(patternIndex) + 1);
+			}
+		}
+
+		List<String> taxa = new ArrayList<String>(tipCount);
+		for (int i = 0; i < tipCount; i++) {
+			taxa.add(tree.getNode(i).getID());
+		}
+		int[] weightArray = new int[weights.size()];
+		for (int i = 0; i < weightArray.length; i++) {
+			weightArray[i] = weights.get(i);
+		}
+		return new PatternAlignment(taxa, dataType, patterns.toArray(new int[patterns.size()][]), weightArray);
+	}
+
+	private static class PatternKey {
+		private final int[] pattern;
+		private final int hash;
+
+		PatternKey(int[] pattern) {
+			this.pattern = pattern;
+			this.hash = Arrays.hashCode(pattern);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof PatternKey && Arrays.equals(pattern, ((PatternKey) other).pattern);
+		}
+	}
+}
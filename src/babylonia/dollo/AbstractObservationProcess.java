@@ -27,21 +27,33 @@
 
 package babylonia.dollo;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import babylonia.dollo.ObservationProcessStatistics.Cache;
+import babylonia.dollo.ObservationProcessStatistics.Phase;
+import beagle.BeagleFactory;
 import beast.core.Citation;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.parameter.RealParameter;
+import beast.core.util.Log;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.branchratemodel.StrictClockModel;
 import beast.evolution.likelihood.TreeLikelihood;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.sitemodel.SiteModelInterface;
+import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.TreeInterface;
 import beast.math.GammaFunction;
 
@@ -57,12 +69,61 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 			+ " over the evolutionary tree realizing the gain of characters", new RealParameter(new Double[] { 1.0 }));
 	public Input<Boolean> integrateGainRateInputInput = new Input<Boolean>("integrateGainRate", "description here",
 			false);
+	public Input<Boolean> mrcaPathsInput = new Input<Boolean>("mrcaPaths",
+			"sum each pattern only over the path from the MRCA of its present tips to the root; this needs no "
+					+ "tip counts or inclusion per node and pattern",
+			false);
+	public Input<Integer> threadsInput = new Input<Integer>("threads",
+			"number of threads to split the patterns over (default 1, i.e. no separate threads)", 1);
+	public Input<Boolean> scaledAccumulationInput = new Input<Boolean>("scaledAccumulation",
+			"scale the partials and sum the pattern likelihoods in log space, so that large trees do not underflow "
+					+ "(this is done automatically if TreeLikelihood starts scaling); not with BEAGLE or threads",
+			false);
+	public Input<Boolean> singlePrecisionInput = new Input<Boolean>("singlePrecision",
+			"keep the cached site likelihoods of all nodes as floats, 8 instead of 16 bytes per node and pattern "
+					+ "of the about 50 the caches and partials take with one rate category; sums are still done in "
+					+ "double precision (cannot be combined with threads)",
+			false);
+	public Input<Boolean> conditionOnPresenceInput = new Input<Boolean>("conditionOnPresence",
+			"condition on the trait being present in at least one tip, calculated analytically instead of from "
+					+ "excluded all-absent columns in the alignment",
+			false);
+	public Input<ObservationProcessStatistics> statisticsInput = new Input<ObservationProcessStatistics>("statistics",
+			"collects counts and times of the phases of the calculation (default: none are collected)");
 
-	protected boolean[] nodePatternInclusion;
-	protected boolean[] storedNodePatternInclusion;
+	// null if subclasses only provide patternMrca
+	protected NodePatternBitSet nodePatternInclusion;
+	// MRCA of the tips a pattern is present in, or -1 if the pattern is
+	// included at every node
+	protected int[] patternMrca;
+	protected int[] storedPatternMrca;
 	protected double[] cumLike;
+	// partials of the node whose site likelihoods are being filled in, read
+	// in place from the likelihood core
 	protected double[] nodePartials;
 	protected double[] nodeLikelihoods;
+	// Frequency-weighted partials of each node, valid for its included
+	// patterns as long as the partials of the node did not change
+	protected NodePatternLikelihoods nodeSiteLikelihoods;
+	// log scale factors of the subtree of each node, for scaled partials
+	private NodePatternLikelihoods nodeLogScales;
+	// whether the site likelihoods are logs corrected for scaling
+	private boolean rowsScaled = false;
+	private boolean storedRowsScaled = false;
+	private double[] logCumLike;
+	// whether nodeSiteLikelihoods is kept in single precision, and the
+	// double copy of the included cells of the row being worked on
+	private boolean singlePrecision = false;
+	private double[] siteLikelihoodRow;
+	// whether the patterns included at a node are taken from the MRCA paths
+	// rather than from nodePatternInclusion, in the current accumulation
+	private boolean includedByMrcaPaths;
+	// false if the site likelihoods of all nodes need recalculating
+	private boolean siteLikelihoodsKnown = false;
+	private boolean storedSiteLikelihoodsKnown = false;
+	// whether the site likelihoods of a node need recalculating
+	private boolean[] siteLikelihoodsDirty;
+	private boolean treeDirty = false;
 	protected int nodeCount;
 	protected int patternCount;
 	protected int stateCount;
@@ -74,8 +135,17 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 
 	// update control variables
 	protected boolean weightKnown;
-	protected double logTreeWeight;
-	protected double storedLogTreeWeight;
+	// false if the survival probabilities of all branches changed, not only
+	// those of the dirty tree nodes
+	protected boolean branchSurvivalKnown = false;
+	protected double logTreeWeightPerGainRate;
+	protected double storedLogTreeWeightPerGainRate;
+	// The lam-independent part of the log likelihood, valid as long as only
+	// lam changed since it was calculated
+	private double patternLogL;
+	private double storedPatternLogL;
+	private boolean patternLogLKnown = false;
+	private boolean storedPatternLogLKnown = false;
 	private double gammaNorm;
 	private double totalPatterns;
 	protected int deathState;
@@ -86,13 +156,96 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 
 	@Override
 	public void initAndValidate() {
+		// before the inclusion is first set up, which depends on it
+		setMrcaPaths(mrcaPathsInput.get());
 		initAndValidate("AnyTip", treeInput.get(), dataInput.get(), siteModelInput.get(), branchRateModelInput.get(),
 				muInput.get(), (lamInput.get() == null ? new RealParameter("1.0") : lamInput.get()),
 				integrateGainRateInputInput.get());
+		this.singlePrecision = singlePrecisionInput.get();
+		if (scaledAccumulationInput.get() && threadsInput.get() > 1) {
+			throw new IllegalArgumentException("scaledAccumulation cannot be combined with threads in " + getID());
+		}
+		setThreads(threadsInput.get());
+		setConditionOnPresence(conditionOnPresenceInput.get());
+		this.statistics = statisticsInput.get();
 
 		// ensure TreeLikelihood initialises the partials for tips
 		m_useAmbiguities.setValue(true, this);
+		if (scaledAccumulationInput.get()) {
+			scaling.setValue(Scaling.always, this);
+		}
+
+		if (isBeagleAvailable()) {
+			initBeagle();
+			return;
+		}
+		// the Java core is made by initCore()
 		super.initAndValidate();
+		if (beagle != null) {
+			throw new IllegalArgumentException(
+					"BEAGLE is available, but could not provide the node partials for " + getID());
+		}
+	}
+
+	/**
+	 * @return whether BEAGLE can be used, found out without setting up any
+	 *         likelihood, in the same way as BeagleTreeLikelihood does
+	 */
+	private static boolean isBeagleAvailable() {
+		if (Boolean.valueOf(System.getProperty("java.only"))) {
+			return false;
+		}
+		try {
+			return !BeagleFactory.getResourceDetails().isEmpty();
+		} catch (Throwable e) {
+			// the native library is missing
+			return false;
+		}
+	}
+
+	/**
+	 * Use a BEAGLE instance that, unlike TreeLikelihood's, gives access to the
+	 * partials of all nodes, instead of TreeLikelihood's set-up. BEAGLE only
+	 * accumulates the scale factors along the path to the root, so the
+	 * partials cannot be scaled.
+	 */
+	private void initBeagle() {
+		if (scaling.get() == Scaling.always) {
+			throw new IllegalArgumentException(getID() + " uses BEAGLE, which cannot scale the partials of all nodes; "
+					+ "set the java.only property to true to use "
+					+ (scaledAccumulationInput.get() ? "scaledAccumulation" : "scaling=\"always\""));
+		}
+		if (scaling.get() != Scaling.none) {
+			Log.warning.println(getID() + " uses BEAGLE without scaling, so the likelihood of a deep tree may "
+					+ "underflow; set the java.only property to true and scaledAccumulation to avoid that");
+		}
+		dolloBeagle = new DolloBeagleTreeLikelihood();
+		dolloBeagle.initByName("data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+				"branchRateModel", branchRateModelInput.get(), "useAmbiguities", true, "scaling",
+				Scaling.none.toString());
+		if (!dolloBeagle.hasBeagleInstance()) {
+			throw new IllegalArgumentException(
+					"BEAGLE is available, but could not provide the node partials for " + getID()
+							+ "; set the java.only property to true to use the Java likelihood core");
+		}
+		beagle = dolloBeagle;
+	}
+
+	/**
+	 * Set up the Dollo core, which reads the partials without copying, in
+	 * place of the one TreeLikelihood just made, before any tip partials go
+	 * in. TreeLikelihood only specialises its core for 4 states, which the
+	 * Dollo data types do not have.
+	 */
+	@Override
+	protected void initCore() {
+		dolloCore = new DolloLikelihoodCore(dataInput.get().getMaxStateCount());
+		likelihoodCore = dolloCore;
+		super.initCore();
+		if (scaling.get() == Scaling.always) {
+			// any factor but 1 switches scaling on
+			dolloCore.setUseScaling(1.01);
+		}
 	}
 
 	public void initAndValidate(String Name, TreeInterface treeModel, Alignment patterns, SiteModelInterface siteModel,
@@ -121,6 +274,17 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 
 		gammaNorm = -GammaFunction.lnGamma(totalPatterns + 1);
 
+		excludedPatterns = new int[0];
+		if (patterns.isAscertained) {
+			Set<Integer> excludeIndices = patterns.getExcludedPatternIndices();
+			excludedPatterns = new int[excludeIndices.size()];
+			int k = 0;
+			for (int index : excludeIndices) {
+				excludedPatterns[k++] = index;
+			}
+			Arrays.sort(excludedPatterns);
+		}
+
 		try {
 			this.deathState = ((MutationDeathType) patterns.getDataType()).DEATHSTATE;
 		} catch (ClassCastException e) {
@@ -143,95 +307,834 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 		return lam;
 	}
 
-	private double calculateSiteLogLikelihood(int site, double[] partials, double[] frequencies) {
-		int v = site * stateCount;
+	/**
+	 * @return the partials of a pattern, integrated over the states with the
+	 *         frequencies and over the rate categories with their proportions.
+	 *         The partials hold one block of patternCount x stateCount values
+	 *         per category.
+	 */
+	private double calculateSiteLikelihood(int site, double[] partials, double[] frequencies) {
 		double sum = 0.0;
-		for (int i = 0; i < stateCount; i++) {
-			sum += frequencies[i] * partials[v + i];
+		int v = site * stateCount;
+		for (int c = 0; c < categoryCount; c++, v += categoryStride) {
+			sum += categoryWeights[c] * calculateStateSum(v, partials, frequencies);
+		}
+		return sum;
+	}
+
+	private double calculateStateSum(int v, double[] partials, double[] frequencies) {
+		switch (stateCount) {
+		case 2:
+			return frequencies[0] * partials[v] + frequencies[1] * partials[v + 1];
+		case 3:
+			return frequencies[0] * partials[v] + frequencies[1] * partials[v + 1] + frequencies[2] * partials[v + 2];
+		default:
+			double sum = 0.0;
+			for (int i = 0; i < stateCount; i++) {
+				sum += frequencies[i] * partials[v + i];
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Fill in the site likelihoods of the consecutive patterns from (inclusive)
+	 * to to (exclusive), in one pass over each category block. The state
+	 * count is fixed per loop, so that the frequencies stay in registers and
+	 * the JIT can unroll over patterns; gives the same values as
+	 * {@link #calculateSiteLikelihood}.
+	 */
+	private void calculateSiteLikelihoods(int from, int to, double[] partials, double[] frequencies, double[] siteL,
+			int offset) {
+		for (int j = from; j < to; ++j) {
+			siteL[offset + j] = 0.0;
+		}
+		for (int c = 0, block = 0; c < categoryCount; c++, block += categoryStride) {
+			final double weight = categoryWeights[c];
+			switch (stateCount) {
+			case 2: {
+				final double f0 = frequencies[0], f1 = frequencies[1];
+				for (int j = from, v = block + from * 2; j < to; ++j, v += 2) {
+					siteL[offset + j] += weight * (f0 * partials[v] + f1 * partials[v + 1]);
+				}
+				break;
+			}
+			case 3: {
+				final double f0 = frequencies[0], f1 = frequencies[1], f2 = frequencies[2];
+				for (int j = from, v = block + from * 3; j < to; ++j, v += 3) {
+					siteL[offset + j] += weight * (f0 * partials[v] + f1 * partials[v + 1] + f2 * partials[v + 2]);
+				}
+				break;
+			}
+			default:
+				for (int j = from, v = block + from * stateCount; j < to; ++j, v += stateCount) {
+					siteL[offset + j] += weight * calculateStateSum(v, partials, frequencies);
+				}
+			}
 		}
-		return Math.log(sum);
 	}
 
 	public final double nodePatternLikelihood(double[] freqs, AbstractObservationProcess likelihoodCore) {
-		int i, j;
+		int j;
 		double logL = this.gammaNorm;
 
-		double logProb;
-		if (!this.nodePatternInclusionKnown)
+		if (this.statistics != null) {
+			this.statistics.lookup(Cache.NODE_PATTERN_INCLUSION, this.nodePatternInclusionKnown);
+		}
+		if (!this.nodePatternInclusionKnown) {
+			final long start = startPhase();
 			this.setNodePatternInclusion();
-		if (this.nodePartials == null) {
-			this.nodePartials = new double[this.patternCount * this.stateCount];
+			this.mrcaPathIndexKnown = false;
+			endPhase(Phase.INCLUSION, start);
+		}
+		long start = startPhase();
+		if (this.nodeSiteLikelihoods == null) {
+			this.nodeSiteLikelihoods = new NodePatternLikelihoods(nodeCount, patternCount, this.singlePrecision);
+			this.siteLikelihoodsDirty = new boolean[nodeCount];
+			if (this.singlePrecision) {
+				this.siteLikelihoodRow = new double[patternCount];
+			}
+		}
+		final boolean scaled = isUsingScaling();
+		if (scaled != this.rowsScaled) {
+			// the site likelihoods are kept linear or as logs
+			this.siteLikelihoodsKnown = false;
+			this.rowsScaled = scaled;
+			if (scaled && this.pool != null) {
+				Log.warning.println(getID() + " started scaling the partials; the scaled accumulation runs on a "
+						+ "single thread, so the threads are no longer used");
+			}
 		}
+		if (scaled && this.nodeLogScales == null) {
+			this.nodeLogScales = new NodePatternLikelihoods(nodeCount, patternCount);
+			this.logCumLike = new double[patternCount];
+		}
+		this.setSiteLikelihoodsDirty();
 
-		double averageRate = this.getAverageRate();
+		final double[] survival = this.getNodeSurvivalProbabilities();
+		this.categoryCount = this.siteModel.getCategoryCount();
+		this.categoryWeights = this.siteModel.getCategoryProportions(null);
+		this.categoryStride = this.patternCount * this.stateCount;
 
 		for (j = 0; j < patternCount; ++j)
 			this.cumLike[j] = 0;
 
-		for (i = 0; i < nodeCount; ++i) {
+		// without an inclusion matrix, the MRCAs are all there is
+		final boolean useMrcaPaths = (this.mrcaPaths || this.nodePatternInclusion == null) && this.patternMrca != null;
+		if (useMrcaPaths && !this.mrcaPathIndexKnown) {
+			this.setMrcaPathIndex();
+		}
+		this.includedByMrcaPaths = useMrcaPaths;
+		if (scaled) {
+			accumulateScaled(freqs, this.getLogNodeSurvivalProbabilities(), useMrcaPaths);
+		} else if (this.pool != null) {
+			accumulateInBlocks(freqs, likelihoodCore, survival, useMrcaPaths);
+		} else if (useMrcaPaths) {
+			accumulateMrcaPaths(freqs, likelihoodCore, survival);
+		} else {
+			accumulateAllNodes(freqs, likelihoodCore, survival);
+		}
+		this.siteLikelihoodsKnown = true;
+		this.treeDirty = false;
+		endPhase(Phase.ACCUMULATION, start);
+
+		start = startPhase();
+		double ascertainmentCorrection;
+		if (this.conditionOnPresence) {
+			ascertainmentCorrection = 1 - this.getAbsentPatternProbability(freqs, survival);
+		} else {
+			ascertainmentCorrection = this.getAscertainmentCorrection(this.cumLike);
+		}
+
+		if (scaled) {
+			final double logAscertainmentCorrection = Math.log(ascertainmentCorrection);
+			for (j = 0; j < patternCount; ++j) {
+				logL += (this.logCumLike[j] - logAscertainmentCorrection) * this.patternWeights[j];
+			}
+		} else if (this.pool != null) {
+			this.blockAscertainmentCorrection = ascertainmentCorrection;
+			logL += runBlocks(this.logLikelihoodTasks);
+		} else {
+			for (j = 0; j < patternCount; ++j) {
+				logL += Math.log(this.cumLike[j] / ascertainmentCorrection) * this.patternWeights[j];
+			}
+		}
+		endPhase(Phase.ASCERTAINMENT, start);
+
+		this.patternLogL = logL;
+		this.patternLogLKnown = true;
+
+		return logL + this.gainRateLogLikelihood();
+	}
+
+	/**
+	 * The part of the log likelihood that depends on the gain rate lam. The
+	 * tree weight is linear in lam, so this takes constant time once the
+	 * tree weight is known.
+	 */
+	private double gainRateLogLikelihood() {
+		double deathRate = this.mu.getValue(0);
+
+		double logTreeWeight = this.getLogTreeWeight();
+
+		if (integrateGainRate) {
+			return -(gammaNorm + logN
+					+ Math.log(-logTreeWeight * deathRate / lamInput.get().getValue()) * this.totalPatterns);
+		} else {
+			return logTreeWeight + Math.log(lamInput.get().getValue() / deathRate) * this.totalPatterns;
+		}
+	}
+
+	/**
+	 * Mark the nodes whose partials TreeLikelihood recalculated: all nodes if
+	 * the site model, clock model or data changed, otherwise those that
+	 * have a dirty node in their subtree.
+	 */
+	private void setSiteLikelihoodsDirty() {
+		if (!this.siteLikelihoodsKnown) {
+			Arrays.fill(this.siteLikelihoodsDirty, true);
+			return;
+		}
+		Arrays.fill(this.siteLikelihoodsDirty, false);
+		if (!this.treeDirty) {
+			return;
+		}
+		final FlatTree tree = getFlatTree();
+		for (int d = 0; d < dirtyNodeCount; ++d) {
+			for (int k = dirtyNodes[d]; k >= 0 && !this.siteLikelihoodsDirty[k]; k = tree.getParent(k)) {
+				this.siteLikelihoodsDirty[k] = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the array holding the site likelihoods of node i, starting at
+	 *         {@link #getSiteLikelihoodOffset(int)}. If they are dirty, the
+	 *         partials of node i are fetched, and the caller needs to fill in
+	 *         the included patterns (see {@link #needsFill(int)}). When done
+	 *         with node i, the caller must call
+	 *         {@link #finishSiteLikelihoods(int, double[])}.
+	 */
+	private double[] getSiteLikelihoods(int i, AbstractObservationProcess likelihoodCore) {
+		final double[] siteL;
+		if (this.singlePrecision) {
+			// work on a double copy of the included cells of the row
+			siteL = this.siteLikelihoodRow;
+			if (!this.siteLikelihoodsDirty[i]) {
+				copyIncludedCells(i, siteL, false);
+				return siteL;
+			}
+		} else {
+			if (!this.siteLikelihoodsDirty[i]) {
+				return this.nodeSiteLikelihoods.getRow(i);
+			}
+			siteL = this.nodeSiteLikelihoods.startRowUpdate(i);
+		}
+		this.nodePartials = likelihoodCore.getNodePartialsView(i);
+		return siteL;
+	}
+
+	private int getSiteLikelihoodOffset(int i) {
+		return this.singlePrecision ? 0 : this.nodeSiteLikelihoods.getOffset(i);
+	}
+
+	/**
+	 * Store the site likelihoods of node i, if they were refreshed in a copy.
+	 */
+	private void finishSiteLikelihoods(int i, double[] siteL) {
+		if (this.singlePrecision && this.siteLikelihoodsDirty[i]) {
+			copyIncludedCells(i, siteL, true);
+		}
+	}
+
+	/**
+	 * Copy the site likelihoods of the patterns included at node i between
+	 * the single precision row of node i and row: into the node's row if
+	 * write, otherwise out of it. The other cells are never read, so they
+	 * are not copied.
+	 */
+	private void copyIncludedCells(int i, double[] row, boolean write) {
+		if (this.includedByMrcaPaths) {
+			final int from = mrcaPatternStart[preOrderIndex[i]];
+			final int to = mrcaPatternStart[preOrderIndex[i] + subtreeSize[i]];
+			for (int k = from; k < to; ++k) {
+				copyCell(i, mrcaPatterns[k], row, write);
+			}
+			for (int k = 0; k < unrootedPatternCount; ++k) {
+				copyCell(i, unrootedPatterns[k], row, write);
+			}
+		} else {
+			final int wordsPerNode = this.nodePatternInclusion.getWordsPerNode();
+			for (int w = 0; w < wordsPerNode; ++w) {
+				long word = this.nodePatternInclusion.getWord(i, w);
+				while (word != 0) {
+					copyCell(i, (w << 6) + Long.numberOfTrailingZeros(word), row, write);
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+	private void copyCell(int i, int j, double[] row, boolean write) {
+		if (write) {
+			this.nodeSiteLikelihoods.set(i, j, row[j]);
+		} else {
+			row[j] = this.nodeSiteLikelihoods.get(i, j);
+		}
+	}
+
+	/**
+	 * @return whether the caller of {@link #getSiteLikelihoods} has to
+	 *         calculate the site likelihoods of node i from the partials
+	 */
+	private boolean needsFill(int i) {
+		return this.siteLikelihoodsDirty[i];
+	}
+
+	private void accumulateAllNodes(double[] freqs, AbstractObservationProcess likelihoodCore, double[] survival) {
+		double prob;
+		final int wordsPerNode = this.nodePatternInclusion.getWordsPerNode();
+		for (int i = 0; i < nodeCount; ++i) {
 			// get partials for node i
-			likelihoodCore.getNodePartials(i, this.nodePartials);
+			final boolean dirty = needsFill(i);
+			final double[] siteL = getSiteLikelihoods(i, likelihoodCore);
+			final int offset = getSiteLikelihoodOffset(i);
 			/*
 			 * multiply the partials by equilibrium probs – this part could be
 			 * optimized by first summing and then multiplying by equilibrium
 			 * probs
 			 */
-			logProb = Math.log(this.getNodeSurvivalProbability(i, averageRate));
+			prob = survival[i];
+
+			for (int w = 0; w < wordsPerNode; ++w) {
+				// visit the set bits, i.e. the included patterns, in order
+				long word = this.nodePatternInclusion.getWord(i, w);
+				if (dirty && word == -1L) {
+					// all 64 patterns included: fill them in one go
+					calculateSiteLikelihoods(w << 6, (w + 1) << 6, this.nodePartials, freqs, siteL, offset);
+					for (int j = w << 6; j < (w + 1) << 6; ++j) {
+						cumLike[j] += siteL[offset + j] * prob;
+					}
+					continue;
+				}
+				while (word != 0) {
+					final int j = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					if (dirty) {
+						siteL[offset + j] = this.calculateSiteLikelihood(j, this.nodePartials, freqs);
+					}
+					cumLike[j] += siteL[offset + j] * prob;
+				}
+			}
+			finishSiteLikelihoods(i, siteL);
+		}
+	}
 
-			for (j = 0; j < this.patternCount; ++j) {
-				if (this.nodePatternInclusion[i * patternCount + j]) {
-					// cumLike[j] += Math.exp(nodeLikelihoods[j] + logProb); //
-					// MAS Replaced with line below
-					cumLike[j] += Math.exp(this.calculateSiteLogLikelihood(j, this.nodePartials, freqs) + logProb);
+	/**
+	 * Node i is included for pattern j iff i is an ancestor of (or equal to)
+	 * the MRCA of j. With the patterns sorted by the pre-order position of
+	 * their MRCA, those patterns form one contiguous slice per node, so the
+	 * total work is proportional to the summed MRCA depths instead of
+	 * nodeCount x patternCount. Nodes are visited in the same order as in
+	 * {@link #accumulateAllNodes}, so both modes give identical sums.
+	 */
+	private void accumulateMrcaPaths(double[] freqs, AbstractObservationProcess likelihoodCore, double[] survival) {
+		double prob;
+		int j;
+		for (int i = 0; i < nodeCount; ++i) {
+			final int from = mrcaPatternStart[preOrderIndex[i]];
+			final int to = mrcaPatternStart[preOrderIndex[i] + subtreeSize[i]];
+			if (from == to && unrootedPatternCount == 0) {
+				continue;
+			}
+			final boolean dirty = needsFill(i);
+			final double[] siteL = getSiteLikelihoods(i, likelihoodCore);
+			final int offset = getSiteLikelihoodOffset(i);
+			prob = survival[i];
+
+			for (int k = from; k < to; ++k) {
+				j = mrcaPatterns[k];
+				if (dirty) {
+					siteL[offset + j] = this.calculateSiteLikelihood(j, this.nodePartials, freqs);
 				}
+				cumLike[j] += siteL[offset + j] * prob;
 			}
+			for (int k = 0; k < unrootedPatternCount; ++k) {
+				j = unrootedPatterns[k];
+				if (dirty) {
+					siteL[offset + j] = this.calculateSiteLikelihood(j, this.nodePartials, freqs);
+				}
+				cumLike[j] += siteL[offset + j] * prob;
+			}
+			finishSiteLikelihoods(i, siteL);
 		}
+	}
 
-		double ascertainmentCorrection = this.getAscertainmentCorrection(this.cumLike);
+	/**
+	 * The version of the accumulation for scaled partials. The site
+	 * likelihoods of a node are kept as logs, with the scale factors of all
+	 * internal nodes in its subtree added back, and each cumLike[j] is summed
+	 * as a running log-sum-exp: logCumLike[j] holds the largest term so far
+	 * and cumLike[j] the sum of all terms relative to it. Afterwards both
+	 * hold the total, logCumLike[j] exactly and cumLike[j] as far as it does
+	 * not underflow. This runs single-threaded.
+	 */
+	private void accumulateScaled(double[] freqs, double[] logSurvival, boolean useMrcaPaths) {
+		final FlatTree tree = getFlatTree();
+		// scale factors of the subtrees of the dirty nodes, children first
+		for (int i : getPostOrderNodeList()) {
+			if (!this.siteLikelihoodsDirty[i]) {
+				continue;
+			}
+			final double[] scales = this.nodeLogScales.startRowUpdate(i);
+			final int offset = this.nodeLogScales.getOffset(i);
+			System.arraycopy(this.dolloCore.getNodeLogScalingFactorsView(i), 0, scales, offset, patternCount);
+			for (int c = 0; c < tree.getChildCount(i); ++c) {
+				final int child = tree.getChild(i, c);
+				final double[] childScales = this.nodeLogScales.getRow(child);
+				final int childOffset = this.nodeLogScales.getOffset(child);
+				for (int j = 0; j < patternCount; ++j) {
+					scales[offset + j] += childScales[childOffset + j];
+				}
+			}
+		}
 
-		for (j = 0; j < patternCount; ++j) {
-			logL += Math.log(this.cumLike[j] / ascertainmentCorrection) * this.patternWeights[j];
+		Arrays.fill(this.logCumLike, Double.NEGATIVE_INFINITY);
+		final int wordsPerNode = useMrcaPaths ? 0 : this.nodePatternInclusion.getWordsPerNode();
+		for (int i = 0; i < nodeCount; ++i) {
+			final boolean dirty = this.siteLikelihoodsDirty[i];
+			final double[] siteL = getSiteLikelihoods(i, this);
+			final int offset = getSiteLikelihoodOffset(i);
+			final double[] scales = this.nodeLogScales.getRow(i);
+			final int scaleOffset = this.nodeLogScales.getOffset(i);
+			if (useMrcaPaths) {
+				final int from = mrcaPatternStart[preOrderIndex[i]];
+				final int to = mrcaPatternStart[preOrderIndex[i] + subtreeSize[i]];
+				for (int k = from; k < to; ++k) {
+					addScaled(siteL, offset, mrcaPatterns[k], dirty, freqs, logSurvival[i], scales, scaleOffset);
+				}
+				for (int k = 0; k < unrootedPatternCount; ++k) {
+					addScaled(siteL, offset, unrootedPatterns[k], dirty, freqs, logSurvival[i], scales, scaleOffset);
+				}
+			} else {
+				for (int w = 0; w < wordsPerNode; ++w) {
+					long word = this.nodePatternInclusion.getWord(i, w);
+					while (word != 0) {
+						final int j = (w << 6) + Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+						addScaled(siteL, offset, j, dirty, freqs, logSurvival[i], scales, scaleOffset);
+					}
+				}
+			}
+			finishSiteLikelihoods(i, siteL);
 		}
 
-		double deathRate = this.mu.getValue(0);
+		for (int j = 0; j < patternCount; ++j) {
+			this.logCumLike[j] += Math.log(this.cumLike[j]);
+			this.cumLike[j] = Math.exp(this.logCumLike[j]);
+		}
+	}
 
-		double logTreeWeight = this.getLogTreeWeight();
+	private void addScaled(double[] siteL, int offset, int j, boolean dirty, double[] freqs, double logProb,
+			double[] scales, int scaleOffset) {
+		if (dirty) {
+			siteL[offset + j] = Math.log(this.calculateSiteLikelihood(j, this.nodePartials, freqs))
+					+ scales[scaleOffset + j];
+		}
+		final double logTerm = siteL[offset + j] + logProb;
+		if (logTerm == Double.NEGATIVE_INFINITY) {
+			return;
+		}
+		if (logTerm > this.logCumLike[j]) {
+			this.cumLike[j] = this.cumLike[j] * Math.exp(this.logCumLike[j] - logTerm) + 1.0;
+			this.logCumLike[j] = logTerm;
+		} else {
+			this.cumLike[j] += Math.exp(logTerm - this.logCumLike[j]);
+		}
+	}
 
-		if (integrateGainRate) {
-			logL -= gammaNorm + logN
-					+ Math.log(-logTreeWeight * deathRate / lamInput.get().getValue()) * this.totalPatterns;
+	/**
+	 * The multi-threaded version of the accumulation. It runs in two
+	 * parallel phases: first the site likelihoods of the dirty nodes are
+	 * refreshed, with the nodes dealt out to the blocks, each of which has
+	 * its own partials buffer. Then the blocks sum disjoint sets of patterns
+	 * over all nodes. Every cumLike[j] is summed in node order, as in the
+	 * single-threaded versions; only the final sum over the patterns is
+	 * reduced block by block, so results are reproducible for a fixed number
+	 * of threads.
+	 */
+	private void accumulateInBlocks(double[] freqs, AbstractObservationProcess likelihoodCore, double[] survival,
+			boolean useMrcaPaths) {
+		// Everything that is not safe to do from several threads: the row
+		// book-keeping.
+		this.nodeSurvival = survival;
+		for (int i = 0; i < nodeCount; ++i) {
+			if (this.siteLikelihoodsDirty[i]) {
+				this.nodeSiteLikelihoods.startRowUpdate(i);
+			}
+		}
+		this.blockFreqs = freqs;
+		this.blockLikelihoodCore = likelihoodCore;
+		this.blockMrcaPaths = useMrcaPaths;
+		if (this.dolloBeagle == null) {
+			runBlocks(this.refreshTasks);
 		} else {
-			logL += logTreeWeight + Math.log(lamInput.get().getValue() / deathRate) * this.totalPatterns;
+			// BEAGLE is not to be called from several threads either
+			for (int b = 0; b < this.blockCount; ++b) {
+				refreshBlock(b);
+			}
+		}
+		runBlocks(this.accumulateTasks);
+	}
+
+	private double refreshBlock(int block) {
+		for (int i = block; i < nodeCount; i += this.blockCount) {
+			if (!this.siteLikelihoodsDirty[i]) {
+				continue;
+			}
+			final double[] siteL = this.nodeSiteLikelihoods.getRow(i);
+			final int offset = this.nodeSiteLikelihoods.getOffset(i);
+			if (this.blockMrcaPaths) {
+				final int from = mrcaPatternStart[preOrderIndex[i]];
+				final int to = mrcaPatternStart[preOrderIndex[i] + subtreeSize[i]];
+				if (from == to && unrootedPatternCount == 0) {
+					continue;
+				}
+				final double[] partials = this.blockLikelihoodCore.getNodePartialsView(i);
+				for (int k = from; k < to; ++k) {
+					final int j = mrcaPatterns[k];
+					siteL[offset + j] = this.calculateSiteLikelihood(j, partials, this.blockFreqs);
+				}
+				for (int k = 0; k < unrootedPatternCount; ++k) {
+					final int j = unrootedPatterns[k];
+					siteL[offset + j] = this.calculateSiteLikelihood(j, partials, this.blockFreqs);
+				}
+			} else {
+				final double[] partials = this.blockLikelihoodCore.getNodePartialsView(i);
+				for (int w = 0; w < this.nodePatternInclusion.getWordsPerNode(); ++w) {
+					long word = this.nodePatternInclusion.getWord(i, w);
+					if (word == -1L) {
+						calculateSiteLikelihoods(w << 6, (w + 1) << 6, partials, this.blockFreqs, siteL, offset);
+						continue;
+					}
+					while (word != 0) {
+						final int j = (w << 6) + Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+						siteL[offset + j] = this.calculateSiteLikelihood(j, partials, this.blockFreqs);
+					}
+				}
+			}
+		}
+		return 0.0;
+	}
+
+	private double accumulateBlock(int block) {
+		if (this.blockMrcaPaths) {
+			// split the positions in the MRCA-sorted pattern lists
+			final int rootedCount = patternCount - unrootedPatternCount;
+			final int firstRooted = (int) ((long) rootedCount * block / this.blockCount);
+			final int endRooted = (int) ((long) rootedCount * (block + 1) / this.blockCount);
+			final int firstUnrooted = unrootedPatternCount * block / this.blockCount;
+			final int endUnrooted = unrootedPatternCount * (block + 1) / this.blockCount;
+			for (int i = 0; i < nodeCount; ++i) {
+				final int from = Math.max(firstRooted, mrcaPatternStart[preOrderIndex[i]]);
+				final int to = Math.min(endRooted, mrcaPatternStart[preOrderIndex[i] + subtreeSize[i]]);
+				final double[] siteL = this.nodeSiteLikelihoods.getRow(i);
+				final int offset = this.nodeSiteLikelihoods.getOffset(i);
+				final double prob = this.nodeSurvival[i];
+				for (int k = from; k < to; ++k) {
+					final int j = mrcaPatterns[k];
+					cumLike[j] += siteL[offset + j] * prob;
+				}
+				for (int k = firstUnrooted; k < endUnrooted; ++k) {
+					final int j = unrootedPatterns[k];
+					cumLike[j] += siteL[offset + j] * prob;
+				}
+			}
+		} else {
+			// split the words of the inclusion rows
+			final int wordsPerNode = this.nodePatternInclusion.getWordsPerNode();
+			final int firstWord = wordsPerNode * block / this.blockCount;
+			final int endWord = wordsPerNode * (block + 1) / this.blockCount;
+			for (int i = 0; i < nodeCount; ++i) {
+				final double[] siteL = this.nodeSiteLikelihoods.getRow(i);
+				final int offset = this.nodeSiteLikelihoods.getOffset(i);
+				final double prob = this.nodeSurvival[i];
+				for (int w = firstWord; w < endWord; ++w) {
+					long word = this.nodePatternInclusion.getWord(i, w);
+					while (word != 0) {
+						final int j = (w << 6) + Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+						cumLike[j] += siteL[offset + j] * prob;
+					}
+				}
+			}
+		}
+		return 0.0;
+	}
+
+	private double logLikelihoodBlock(int block) {
+		final int first = (int) ((long) patternCount * block / this.blockCount);
+		final int end = (int) ((long) patternCount * (block + 1) / this.blockCount);
+		double logL = 0.0;
+		for (int j = first; j < end; ++j) {
+			logL += Math.log(this.cumLike[j] / this.blockAscertainmentCorrection) * this.patternWeights[j];
 		}
 		return logL;
 	}
 
+	/**
+	 * Run the tasks of all blocks and wait for them to finish.
+	 *
+	 * @return the sum of their results, in block order
+	 */
+	private double runBlocks(List<Callable<Double>> tasks) {
+		double sum = 0.0;
+		try {
+			for (Future<Double> result : this.pool.invokeAll(tasks)) {
+				sum += result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return sum;
+	}
+
+	/**
+	 * Number the nodes in pre-order, so that every subtree occupies a
+	 * contiguous range, and bucket the patterns by the pre-order position of
+	 * their MRCA.
+	 */
+	private void setMrcaPathIndex() {
+		if (mrcaPatternStart == null) {
+			mrcaPatternStart = new int[nodeCount + 1];
+			mrcaPatterns = new int[patternCount];
+			unrootedPatterns = new int[patternCount];
+		}
+		setPreOrder();
+
+		// Counting sort of the patterns by pre-order position of their MRCA
+		Arrays.fill(mrcaPatternStart, 0);
+		unrootedPatternCount = 0;
+		for (int j = 0; j < patternCount; ++j) {
+			if (patternMrca[j] < 0) {
+				unrootedPatterns[unrootedPatternCount++] = j;
+			} else {
+				mrcaPatternStart[preOrderIndex[patternMrca[j]] + 1]++;
+			}
+		}
+		for (int k = 0; k < nodeCount; ++k) {
+			mrcaPatternStart[k + 1] += mrcaPatternStart[k];
+		}
+		for (int j = 0; j < patternCount; ++j) {
+			if (patternMrca[j] >= 0) {
+				mrcaPatterns[mrcaPatternStart[preOrderIndex[patternMrca[j]]]++] = j;
+			}
+		}
+		for (int k = nodeCount; k > 0; --k) {
+			mrcaPatternStart[k] = mrcaPatternStart[k - 1];
+		}
+		mrcaPatternStart[0] = 0;
+
+		mrcaPathIndexKnown = true;
+	}
+
+	/**
+	 * Number the nodes of the current tree in depth-first pre-order, into
+	 * preOrderIndex, and count the nodes of each subtree, into subtreeSize.
+	 * The subtree of node i takes up the pre-order positions from
+	 * preOrderIndex[i] to preOrderIndex[i] + subtreeSize[i].
+	 */
+	protected void setPreOrder() {
+		if (preOrderIndex == null) {
+			preOrderIndex = new int[nodeCount];
+			subtreeSize = new int[nodeCount];
+			preOrderNodeList = new int[nodeCount];
+		}
+
+		// Depth-first pre-order traversal, (ab)using subtreeSize as stack for
+		// the nodes still to be visited
+		final FlatTree tree = getFlatTree();
+		int[] stack = subtreeSize;
+		int top = 0;
+		stack[top++] = tree.getRoot();
+		for (int k = 0; top > 0; ++k) {
+			final int node = stack[--top];
+			preOrderNodeList[k] = node;
+			preOrderIndex[node] = k;
+			for (int c = tree.getChildCount(node) - 1; c >= 0; --c) {
+				stack[top++] = tree.getChild(node, c);
+			}
+		}
+		for (int k = nodeCount - 1; k >= 0; --k) {
+			final int node = preOrderNodeList[k];
+			int size = 1;
+			for (int c = 0; c < tree.getChildCount(node); ++c) {
+				size += subtreeSize[tree.getChild(node, c)];
+			}
+			subtreeSize[node] = size;
+		}
+	}
+
 	protected double getAscertainmentCorrection(double[] patternProbs) {
 		double excludeProb = 0;
-		Set<Integer> excludeIndices = new HashSet<Integer>();
-		if (patterns.isAscertained) {
-			excludeIndices = patterns.getExcludedPatternIndices();
-		}
-		for (int index : excludeIndices) {
+		for (int index : excludedPatterns) {
 			excludeProb += patternProbs[index];
 		}
 		return 1 - excludeProb;
 	}
 
+	/**
+	 * Calculate the probability of the pattern that is absent in all tips, as
+	 * cumLike would hold it if the alignment had such a column, by peeling
+	 * that single pattern through the tree. This costs nodeCount x
+	 * categoryCount transition matrices, independent of the number of
+	 * patterns.
+	 */
+	protected double getAbsentPatternProbability(double[] freqs, double[] survival) {
+		final FlatTree tree = getFlatTree();
+		final int[] postOrder = tree.getPostOrder();
+		final int categoryCount = siteModel.getCategoryCount();
+		final double[] proportions = siteModel.getCategoryProportions(null);
+		final SubstitutionModel substitutionModel = siteModel.substModelInput.get();
+		if (absentPartials == null || absentPartials[0].length != categoryCount * stateCount) {
+			absentPartials = new double[nodeCount][categoryCount * stateCount];
+			absentMatrix = new double[stateCount * stateCount];
+		}
+
+		double absentProb = 0.0;
+		for (int k = 0; k < nodeCount; ++k) {
+			final int i = postOrder[k];
+			final double[] partials = absentPartials[i];
+			if (tree.getChildCount(i) == 0) {
+				Arrays.fill(partials, 0.0);
+				for (int c = 0; c < categoryCount; ++c) {
+					partials[c * stateCount + deathState] = 1.0;
+				}
+			} else {
+				Arrays.fill(partials, 1.0);
+				final double parentHeight = treeModel.getNode(i).getHeight();
+				for (int ch = 0; ch < tree.getChildCount(i); ++ch) {
+					final int child = tree.getChild(i, ch);
+					final Node childNode = treeModel.getNode(child);
+					final double[] childPartials = absentPartials[child];
+					for (int c = 0; c < categoryCount; ++c) {
+						final double jointBranchRate = siteModel.getRateForCategory(c, childNode)
+								* tree.getBranchRate(child);
+						substitutionModel.getTransitionProbabilities(childNode, parentHeight, childNode.getHeight(),
+								jointBranchRate, absentMatrix);
+						for (int from = 0; from < stateCount; ++from) {
+							double sum = 0.0;
+							for (int to = 0; to < stateCount; ++to) {
+								sum += absentMatrix[from * stateCount + to] * childPartials[c * stateCount + to];
+							}
+							partials[c * stateCount + from] *= sum;
+						}
+					}
+				}
+			}
+			double siteL = 0.0;
+			for (int c = 0; c < categoryCount; ++c) {
+				for (int s = 0; s < stateCount; ++s) {
+					siteL += proportions[c] * freqs[s] * partials[c * stateCount + s];
+				}
+			}
+			absentProb += survival[i] * siteL;
+		}
+		return absentProb;
+	}
+
 	final public double getLogTreeWeight() {
+		if (this.statistics != null) {
+			this.statistics.lookup(Cache.TREE_WEIGHT, this.weightKnown);
+		}
 		if (!this.weightKnown) {
-			this.logTreeWeight = this.calculateLogTreeWeight();
+			final long start = startPhase();
+			this.logTreeWeightPerGainRate = this.calculateLogTreeWeightPerGainRate();
 			this.weightKnown = true;
+			endPhase(Phase.TREE_WEIGHT, start);
 		}
 
-		return this.logTreeWeight;
+		return this.logTreeWeightPerGainRate * lam.getValue(0);
+	}
+
+	public double calculateLogTreeWeight() {
+		return calculateLogTreeWeightPerGainRate() * lam.getValue(0);
 	}
 
-	abstract public double calculateLogTreeWeight();
+	/**
+	 * @return the log tree weight for lam = 1. The tree weight is linear in
+	 *         lam, so this is all that needs recalculating when anything but
+	 *         lam changes.
+	 */
+	abstract public double calculateLogTreeWeightPerGainRate();
 
 	abstract void setNodePatternInclusion();
 
+	/**
+	 * @return the node numbers in an order where all children come before
+	 *         their parent. This only changes with the topology, so it is
+	 *         cached until a node gets a new parent. The array is reused and
+	 *         must not be modified.
+	 */
+	protected int[] getPostOrderNodeList() {
+		return getFlatTree().getPostOrder();
+	}
+
+	/**
+	 * @return the array copy of the tree, brought up to date with the nodes
+	 *         that changed since it was last used
+	 */
+	protected FlatTree getFlatTree() {
+		if (flatTree == null) {
+			flatTree = new FlatTree(nodeCount);
+			flatTopologyKnown = false;
+			flatBranchesKnown = false;
+		}
+		if (!flatTopologyKnown) {
+			flatTree.setTopology(treeModel);
+			flatTopologyKnown = true;
+		}
+		if (!flatBranchesKnown || flatBranchesDirty) {
+			if (flatBranchesKnown) {
+				flatTree.setBranches(treeModel, branchRateModel, dirtyNodes, dirtyNodeCount);
+			} else {
+				flatTree.setBranches(treeModel, branchRateModel);
+			}
+			flatBranchesKnown = true;
+			flatBranchesDirty = false;
+		}
+		return flatTree;
+	}
+
+	/**
+	 * Fill postOrderList with the node numbers of tree, children before
+	 * parents, starting from the root at the end.
+	 */
+	protected static void postOrderTraversalList(TreeInterface tree, int[] postOrderList) {
+		int nodeCount = tree.getNodeCount();
+		int idx = nodeCount - 1;
+		int cidx = nodeCount - 1;
+
+		postOrderList[idx] = tree.getRoot().getNr();
+
+		while (cidx > 0) {
+			Node cNode = tree.getNode(postOrderList[idx]);
+			for (int i = 0; i < cNode.getChildCount(); ++i) {
+				cidx -= 1;
+				postOrderList[cidx] = cNode.getChild(i).getNr();
+			}
+			idx -= 1;
+		}
+	}
+
 	final public double getAverageRate() {
+		if (statistics != null) {
+			statistics.lookup(Cache.AVERAGE_RATE, averageRateKnown);
+		}
 		if (!averageRateKnown) {
 			double avgRate = 0.0;
 			double proportions[] = siteModel.getCategoryProportions(null);
@@ -244,58 +1147,250 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 		return averageRate;
 	}
 
+	/**
+	 * @return the survival probabilities of all branches (1 for the root).
+	 *         They are cached and only recalculated for the branches that
+	 *         changed, or for all if mu, the site model or the clock changed.
+	 *         The array is reused and must not be modified.
+	 */
+	protected double[] getNodeSurvivalProbabilities() {
+		updateSurvivalCache();
+		return survival;
+	}
+
+	/**
+	 * @return the logs of {@link #getNodeSurvivalProbabilities()}
+	 */
+	protected double[] getLogNodeSurvivalProbabilities() {
+		updateSurvivalCache();
+		return logSurvival;
+	}
+
+	private void updateSurvivalCache() {
+		if (survival == null) {
+			survival = new double[nodeCount];
+			logSurvival = new double[nodeCount];
+			storedSurvival = new double[nodeCount];
+			storedLogSurvival = new double[nodeCount];
+			survivalKnown = false;
+		}
+		if (survivalKnown && !survivalDirty) {
+			return;
+		}
+		if (!survivalChanged) {
+			// first change since store()
+			System.arraycopy(survival, 0, storedSurvival, 0, nodeCount);
+			System.arraycopy(logSurvival, 0, storedLogSurvival, 0, nodeCount);
+			survivalChanged = true;
+		}
+		final double averageRate = getAverageRate();
+		if (!survivalKnown) {
+			for (int i = 0; i < nodeCount; ++i) {
+				survival[i] = getNodeSurvivalProbability(i, averageRate);
+				logSurvival[i] = Math.log(survival[i]);
+			}
+		} else {
+			for (int d = 0; d < dirtyNodeCount; ++d) {
+				final int i = dirtyNodes[d];
+				survival[i] = getNodeSurvivalProbability(i, averageRate);
+				logSurvival[i] = Math.log(survival[i]);
+			}
+		}
+		survivalKnown = true;
+		survivalDirty = false;
+	}
+
 	public double getNodeSurvivalProbability(int index, double averageRate) {
-		Node node = treeModel.getNode(index);
-		Node parent = node.getParent();
+		final FlatTree tree = getFlatTree();
 
-		if (parent == null)
+		if (tree.getParent(index) < 0)
 			return 1.0;
 
 		final double deathRate = mu.getValue(0) * averageRate; // getAverageRate();
-		final double branchRate = branchRateModel.getRateForBranch(node);
+		final double branchRate = tree.getBranchRate(index);
 		// Get the operational time of the branch
-		final double branchTime = branchRate * node.getLength();
+		final double branchTime = branchRate * tree.getBranchLength(index);
 		return 1.0 - Math.exp(-deathRate * branchTime);
 	}
 
 	@Override
 	public boolean requiresRecalculation() {
+		// let TreeLikelihood find out which partials to update
+		super.requiresRecalculation();
+		// mu and lam do not enter the partials
+		boolean partialsDirty = false;
 		if (mu.somethingIsDirty()) {
 			averageRateKnown = false;
 			weightKnown = false;
-			nodePatternInclusionKnown = false;
+			branchSurvivalKnown = false;
+			survivalKnown = false;
+			patternLogLKnown = false;
 		}
 		if (siteModel.isDirtyCalculation()) {
+			// the average rate enters the tree weight
 			averageRateKnown = false;
+			weightKnown = false;
+			branchSurvivalKnown = false;
+			survivalKnown = false;
+			partialsDirty = true;
 		}
 		if (treeModel.somethingIsDirty()) {
+			collectDirtyNodes();
+			if (filthyNodeCount > 0) {
+				flatTopologyKnown = false;
+			}
+			flatBranchesDirty = true;
+			survivalDirty = true;
 			weightKnown = false;
 			nodePatternInclusionKnown = false;
+			treeDirty = true;
+			patternLogLKnown = false;
+		}
+		if (branchRateModelInput.get() != null && branchRateModelInput.get().isDirtyCalculation()) {
+			weightKnown = false;
+			branchSurvivalKnown = false;
+			flatBranchesKnown = false;
+			survivalKnown = false;
+			partialsDirty = true;
+		}
+		if (patterns.isDirtyCalculation()) {
+			partialsDirty = true;
+		}
+		if (partialsDirty) {
+			// all partials change
+			siteLikelihoodsKnown = false;
+			patternLogLKnown = false;
 		}
 		return true;
 	}
 
+	/**
+	 * Add the nodes of the tree that are not clean to {@link #dirtyNodes},
+	 * and those that are filthy to {@link #filthyNodes}, unless listed
+	 * already since the last store() or restore().
+	 */
+	private void collectDirtyNodes() {
+		if (dirtyNodes == null) {
+			dirtyNodes = new int[nodeCount];
+			filthyNodes = new int[nodeCount];
+			listedDirtiness = new int[nodeCount];
+		}
+		for (int i = 0; i < nodeCount; ++i) {
+			// the dirtiness flags are or'ed together
+			final int newDirtiness = treeModel.getNode(i).isDirty() & ~listedDirtiness[i];
+			if (newDirtiness == Tree.IS_CLEAN) {
+				continue;
+			}
+			if (listedDirtiness[i] == Tree.IS_CLEAN) {
+				dirtyNodes[dirtyNodeCount++] = i;
+			}
+			if ((newDirtiness & Tree.IS_FILTHY) != 0) {
+				filthyNodes[filthyNodeCount++] = i;
+			}
+			listedDirtiness[i] |= newDirtiness;
+		}
+	}
+
+	private void clearDirtyNodes() {
+		for (int d = 0; d < dirtyNodeCount; ++d) {
+			listedDirtiness[dirtyNodes[d]] = Tree.IS_CLEAN;
+		}
+		dirtyNodeCount = 0;
+		filthyNodeCount = 0;
+	}
+
 	@Override
 	public void store() {
+		super.store();
+		clearDirtyNodes();
 		// storedAverageRate = averageRate;
-		storedLogTreeWeight = logTreeWeight;
-		System.arraycopy(nodePatternInclusion, 0, storedNodePatternInclusion, 0, storedNodePatternInclusion.length);
+		storedLogTreeWeightPerGainRate = logTreeWeightPerGainRate;
+		storedPatternLogL = patternLogL;
+		storedPatternLogLKnown = patternLogLKnown;
+		storedSiteLikelihoodsKnown = siteLikelihoodsKnown;
+		if (flatTree != null) {
+			flatTree.store();
+		}
+		storedFlatTopologyKnown = flatTopologyKnown;
+		storedFlatBranchesKnown = flatBranchesKnown;
+		storedFlatBranchesDirty = flatBranchesDirty;
+		storedSurvivalKnown = survivalKnown;
+		storedSurvivalDirty = survivalDirty;
+		survivalChanged = false;
+		if (nodeSiteLikelihoods != null) {
+			nodeSiteLikelihoods.store();
+		}
+		if (nodeLogScales != null) {
+			nodeLogScales.store();
+		}
+		storedRowsScaled = rowsScaled;
+		if (nodePatternInclusion != null) {
+			nodePatternInclusion.store();
+		}
+		if (patternMrca != null) {
+			System.arraycopy(patternMrca, 0, storedPatternMrca, 0, patternCount);
+		}
 	}
 
 	@Override
 	public void restore() {
+		super.restore();
+		clearDirtyNodes();
 		// averageRate = storedAverageRate;
 		averageRateKnown = false;
-		logTreeWeight = storedLogTreeWeight;
-		boolean[] tmp = storedNodePatternInclusion;
-		storedNodePatternInclusion = nodePatternInclusion;
-		nodePatternInclusion = tmp;
+		logTreeWeightPerGainRate = storedLogTreeWeightPerGainRate;
+		patternLogL = storedPatternLogL;
+		patternLogLKnown = storedPatternLogLKnown;
+		siteLikelihoodsKnown = storedSiteLikelihoodsKnown;
+		if (flatTree != null) {
+			flatTree.restore();
+		}
+		flatTopologyKnown = storedFlatTopologyKnown;
+		flatBranchesKnown = storedFlatBranchesKnown;
+		flatBranchesDirty = storedFlatBranchesDirty;
+		if (survivalChanged) {
+			double[] tmp = storedSurvival;
+			storedSurvival = survival;
+			survival = tmp;
+			tmp = storedLogSurvival;
+			storedLogSurvival = logSurvival;
+			logSurvival = tmp;
+			survivalChanged = false;
+		}
+		survivalKnown = storedSurvivalKnown;
+		survivalDirty = storedSurvivalDirty;
+		treeDirty = false;
+		if (nodeSiteLikelihoods != null) {
+			nodeSiteLikelihoods.restore();
+		}
+		if (nodeLogScales != null) {
+			nodeLogScales.restore();
+		}
+		rowsScaled = storedRowsScaled;
+		if (nodePatternInclusion != null) {
+			nodePatternInclusion.restore();
+		}
+		if (patternMrca != null) {
+			int[] tmpMrca = storedPatternMrca;
+			storedPatternMrca = patternMrca;
+			patternMrca = tmpMrca;
+			mrcaPathIndexKnown = false;
+		}
 	}
 
 	@Override
 	public double calculateLogP() {
-		// Calculate the partial likelihoods
-		super.calculateLogP();
+		if (patternLogLKnown) {
+			// only lam changed
+			logP = patternLogL + gainRateLogLikelihood();
+			return logP;
+		}
+		if (!siteLikelihoodsKnown || treeDirty) {
+			// Calculate the partial likelihoods
+			final long start = startPhase();
+			super.calculateLogP();
+			endPhase(Phase.PEELING, start);
+		}
 		// get the frequency model
 		double[] freqs = ((SiteModel.Base) siteModelInput.get()).substModelInput.get().getFrequencies();
 		// let the observationProcess handle the rest
@@ -303,10 +1398,34 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 		return logP;
 	}
 
+	/**
+	 * @return whether the partials are scaled, so that the site likelihoods
+	 *         are summed in log space
+	 */
+	boolean isUsingScaling() {
+		return dolloCore != null && dolloCore.isUsingScaling();
+	}
+
+	/**
+	 * @return the partials of a node, without copying them if the Java core is
+	 *         used (see {@link DolloLikelihoodCore#getNodePartialsView(int)}).
+	 *         With BEAGLE, they are copied into a buffer that the next call
+	 *         overwrites.
+	 */
+	double[] getNodePartialsView(int iNode) {
+		if (dolloCore != null) {
+			return dolloCore.getNodePartialsView(iNode);
+		}
+		if (beaglePartials == null) {
+			beaglePartials = new double[patternCount * stateCount * siteModel.getCategoryCount()];
+		}
+		getNodePartials(iNode, beaglePartials);
+		return beaglePartials;
+	}
+
 	void getNodePartials(int iNode, double[] fPartials) {
-		if (beagle != null) {
-			// FIXME: Not implemented.
-			likelihoodCore.getNodePartials(iNode, fPartials);
+		if (dolloBeagle != null) {
+			dolloBeagle.getNodePartials(iNode, fPartials);
 		} else {
 			likelihoodCore.getNodePartials(iNode, fPartials);
 		}
@@ -315,13 +1434,147 @@ abstract public class AbstractObservationProcess extends TreeLikelihood {
 	protected void acceptState() {
 	}
 
+	/**
+	 * @return the start time of a phase, if statistics are collected
+	 */
+	private long startPhase() {
+		return (statistics == null ? 0L : statistics.start());
+	}
+
+	private void endPhase(Phase phase, long start) {
+		if (statistics != null) {
+			statistics.end(phase, start);
+		}
+	}
+
 	public void setIntegrateGainRate(boolean integrateGainRate) {
 		this.integrateGainRate = integrateGainRate;
 	}
 
+	public void setMrcaPaths(boolean mrcaPaths) {
+		this.mrcaPaths = mrcaPaths;
+	}
+
+	public boolean isMrcaPaths() {
+		return mrcaPaths;
+	}
+
+	public void setConditionOnPresence(boolean conditionOnPresence) {
+		this.conditionOnPresence = conditionOnPresence;
+	}
+
+	/**
+	 * Split the patterns into one block per thread, to be summed on a
+	 * fork-join pool of that many threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads > 1 && this.singlePrecision) {
+			throw new IllegalArgumentException("singlePrecision cannot be combined with threads in " + getID());
+		}
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+		if (threads <= 1) {
+			return;
+		}
+		this.pool = new ForkJoinPool(threads);
+		this.blockCount = threads;
+		this.refreshTasks = new ArrayList<Callable<Double>>(threads);
+		this.accumulateTasks = new ArrayList<Callable<Double>>(threads);
+		this.logLikelihoodTasks = new ArrayList<Callable<Double>>(threads);
+		for (int b = 0; b < threads; ++b) {
+			final int block = b;
+			this.refreshTasks.add(() -> refreshBlock(block));
+			this.accumulateTasks.add(() -> accumulateBlock(block));
+			this.logLikelihoodTasks.add(() -> logLikelihoodBlock(block));
+		}
+	}
+
 	private boolean integrateGainRate = false;
 
+	// array copy of the tree, see getFlatTree()
+	private FlatTree flatTree;
+	private boolean flatTopologyKnown = false;
+	private boolean storedFlatTopologyKnown = false;
+	// false if the branches of all nodes need copying
+	private boolean flatBranchesKnown = false;
+	private boolean storedFlatBranchesKnown = false;
+	// true if the branches of the dirty nodes need copying
+	private boolean flatBranchesDirty = false;
+	private boolean storedFlatBranchesDirty = false;
+
+	// numbers of the tree nodes that are not clean, and of those that are
+	// filthy, collected by requiresRecalculation() since the last store() or
+	// restore()
+	protected int[] dirtyNodes;
+	protected int dirtyNodeCount = 0;
+	protected int[] filthyNodes;
+	protected int filthyNodeCount = 0;
+	// the dirtiness each node is listed with
+	private int[] listedDirtiness;
+
+	// indices of the patterns excluded by the alignment's ascertainment
+	protected int[] excludedPatterns;
+	private boolean conditionOnPresence = false;
+	// null if no statistics are collected
+	private ObservationProcessStatistics statistics;
+	// partials of the all-absent pattern, per node
+	private double[][] absentPartials;
+	private double[] absentMatrix;
+
+	private boolean mrcaPaths = false;
+	private boolean mrcaPathIndexKnown = false;
+	// see setPreOrder()
+	protected int[] preOrderIndex;
+	private int[] preOrderNodeList;
+	protected int[] subtreeSize;
+	private int[] mrcaPatternStart;
+	private int[] mrcaPatterns;
+	private int[] unrootedPatterns;
+	private int unrootedPatternCount;
+
+	private ForkJoinPool pool = null;
+	private int blockCount;
+	private double[] nodeSurvival;
+	private List<Callable<Double>> refreshTasks;
+	private List<Callable<Double>> accumulateTasks;
+	private List<Callable<Double>> logLikelihoodTasks;
+	// arguments of the current evaluation, for the block tasks
+	private double[] blockFreqs;
+	private AbstractObservationProcess blockLikelihoodCore;
+	private boolean blockMrcaPaths;
+	private double blockAscertainmentCorrection;
+
 	private double averageRate;
 	private boolean averageRateKnown = false;
 
+	// rate categories of the current evaluation, and the distance between
+	// their blocks in the partials
+	private int categoryCount = 1;
+	private double[] categoryWeights = new double[] { 1.0 };
+	private int categoryStride;
+
+	// survival probability of each branch and its log, see
+	// getNodeSurvivalProbabilities()
+	private double[] survival;
+	private double[] logSurvival;
+	private double[] storedSurvival;
+	private double[] storedLogSurvival;
+	// false if all branches need recalculating
+	private boolean survivalKnown = false;
+	private boolean storedSurvivalKnown = false;
+	// true if the branches of the dirty nodes need recalculating
+	private boolean survivalDirty = false;
+	private boolean storedSurvivalDirty = false;
+	// whether the arrays were changed since store()
+	private boolean survivalChanged = false;
+
+	// replaces TreeLikelihood's BEAGLE instance, if BEAGLE is used
+	private DolloBeagleTreeLikelihood dolloBeagle = null;
+	// the partials of a node copied out of BEAGLE
+	private double[] beaglePartials;
+	// replaces TreeLikelihood's Java core otherwise
+	private DolloLikelihoodCore dolloCore = null;
+
 }
\ No newline at end of file
@@ -27,12 +27,13 @@
 
 package babylonia.dollo;
 
+import java.util.Arrays;
+
 import beast.core.Description;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.sitemodel.SiteModelInterface;
-import beast.evolution.tree.Node;
 import beast.evolution.tree.TreeInterface;
 
 @Description("Observation process for Multi-State Stochastic Dollo model. Defines a data collection process where the traits must be present in at least one tip node.")
@@ -48,145 +49,304 @@ public class AnyTipObservationProcess extends AbstractObservationProcess {
 		super.initAndValidate(modelName, treeModel, patterns, siteModel, branchRateModel, mu, lam, integrateGainRate);
 	}
 
+	/**
+	 * The survival probabilities p are only recalculated for the branches
+	 * that changed, unless mu, the site model or the clock changed, and u0
+	 * only for those nodes and their ancestors.
+	 */
 	@Override
-	public double calculateLogTreeWeight() {
+	public double calculateLogTreeWeightPerGainRate() {
 		int L = treeModel.getNodeCount();
 		if (u0 == null || p == null) {
 			u0 = new double[L]; // probability that the trait at node i survives
 								// to no leaf
 			p = new double[L]; // probability of survival on the branch
 								// ancestral to i
+			storedU0 = new double[L];
+			storedP = new double[L];
+			weightNodeChanged = new boolean[L];
+			branchSurvivalKnown = false;
 		}
 		int i, j, childNumber;
-		Node node;
 		double logWeight = 0.0;
 
-		double averageRate = getAverageRate();
+		final double[] survival = getNodeSurvivalProbabilities();
+		final FlatTree tree = getFlatTree();
 
-		for (i = 0; i < L; ++i) {
-			p[i] = 1.0 - getNodeSurvivalProbability(i, averageRate);
+		if (!branchSurvivalKnown) {
+			Arrays.fill(weightNodeChanged, true);
+			for (i = 0; i < L; ++i) {
+				p[i] = 1.0 - survival[i];
+			}
+			branchSurvivalKnown = true;
+		} else {
+			Arrays.fill(weightNodeChanged, false);
+			for (int d = 0; d < dirtyNodeCount; ++d) {
+				i = dirtyNodes[d];
+				p[i] = 1.0 - survival[i];
+				for (int k = i; k >= 0 && !weightNodeChanged[k]; k = tree.getParent(k)) {
+					weightNodeChanged[k] = true;
+				}
+			}
 		}
 
-		postOrderNodeList = postOrderTraversalList(treeModel);
+		postOrderNodeList = getPostOrderNodeList();
 
 		for (int postOrderIndex = 0; postOrderIndex < nodeCount; postOrderIndex++) {
 
 			i = postOrderNodeList[postOrderIndex];
+			if (!weightNodeChanged[i]) {
+				continue;
+			}
 
 			if (i < treeModel.getLeafNodeCount()) { // Is tip
 				u0[i] = 0.0;
-				logWeight += 1.0 - p[i];
 			} else { // Is internal node or root
 				u0[i] = 1.0;
-				node = treeModel.getNode(i);
-				for (j = 0; j < node.getChildCount(); ++j) {
-					childNumber = node.getChild(j).getNr();
+				for (j = 0; j < tree.getChildCount(i); ++j) {
+					childNumber = tree.getChild(i, j);
 					u0[i] *= 1.0 - p[childNumber] * (1.0 - u0[childNumber]);
 				}
-				logWeight += (1.0 - u0[i]) * (1.0 - p[i]);
 			}
 		}
 
-		return -logWeight * lam.getValue(0) / (getAverageRate() * mu.getValue(0));
+		for (i = 0; i < L; ++i) {
+			logWeight += (1.0 - u0[i]) * (1.0 - p[i]);
+		}
+
+		return -logWeight / (getAverageRate() * mu.getValue(0));
 	}
 
 	public static int[] postOrderTraversalList(TreeInterface tree) {
-		int nodeCount = tree.getNodeCount();
-		int idx = nodeCount - 1;
-		int cidx = nodeCount - 1;
-
-		int[] postOrderList = new int[nodeCount];
-		postOrderList[idx] = tree.getRoot().getNr();
-
-		while (cidx > 0) {
-			Node cNode = tree.getNode(postOrderList[idx]);
-			for (int i = 0; i < cNode.getChildCount(); ++i) {
-				cidx -= 1;
-				postOrderList[cidx] = cNode.getChild(i).getNr();
-			}
-			idx -= 1;
-		}
+		int[] postOrderList = new int[tree.getNodeCount()];
+		postOrderTraversalList(tree, postOrderList);
 		return postOrderList;
 	}
 
 	private void setTipNodePatternInclusion() {
-		for (int i = 0; i < treeModel.getLeafNodeCount(); i++) {
-			Node node = treeModel.getNode(i);
+		TipPresence presence = TipPresence.fromAlignment(patterns, deathState);
+		for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+			extantInTips[patternIndex] = presence.getPresentCount(patternIndex);
+		}
 
+		for (int i = 0; i < treeModel.getLeafNodeCount(); i++) {
+			int taxonIndex = patterns.getTaxonIndex(treeModel.getNode(i).getID());
 			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-				extantInTipsBelow[i * patternCount + patternIndex] = 1;
-				int taxonIndex = patterns.getTaxonIndex(node.getID());
-				int patternItem = patterns.getPattern(taxonIndex, patternIndex);
-				int[] states = patterns.userDataTypeInput.get().getStatesForCode(patternItem);
-				for (int state : states) {
-					if (state == deathState) {
-						extantInTipsBelow[i * patternCount + patternIndex] = 0;
-					}
-				}
-				extantInTips[patternIndex] += extantInTipsBelow[i * patternCount + patternIndex];
-
+				int extant = presence.isPresent(taxonIndex, patternIndex) ? 1 : 0;
+				extantInTipsBelow.set(i, patternIndex, extant);
+				nodePatternInclusion.set(i, patternIndex, extant >= extantInTips[patternIndex]);
 			}
 		}
+	}
 
-		for (int i = 0; i < treeModel.getNodeCount(); i++) {
-			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-				nodePatternInclusion[i * patternCount + patternIndex] = (extantInTipsBelow[i * patternCount
-						+ patternIndex] >= extantInTips[patternIndex]);
+	/**
+	 * Mark the nodes whose set of tips below may have changed since the last
+	 * call: the nodes that got a new parent, and all their ancestors.
+	 */
+	private void setChangedNodes() {
+		Arrays.fill(nodeChanged, false);
+		final FlatTree tree = getFlatTree();
+		for (int d = 0; d < filthyNodeCount; d++) {
+			for (int k = filthyNodes[d]; k >= 0 && !nodeChanged[k]; k = tree.getParent(k)) {
+				nodeChanged[k] = true;
 			}
 		}
 	}
 
 	@Override
 	public void setNodePatternInclusion() {
-
-		if (postOrderNodeList == null) {
-			postOrderNodeList = new int[nodeCount];
+		if (isMrcaPaths()) {
+			setPatternMrcaFromTips();
+			nodePatternInclusionKnown = true;
+			return;
 		}
 
 		if (nodePatternInclusion == null) {
-			nodePatternInclusion = new boolean[nodeCount * patternCount];
-			storedNodePatternInclusion = new boolean[nodeCount * patternCount];
+			nodePatternInclusion = new NodePatternBitSet(nodeCount, patternCount);
 		}
 
 		if (extantInTips == null) {
 			extantInTips = new int[patternCount];
-			extantInTipsBelow = new int[nodeCount * patternCount];
+			extantInTipsBelow = new NodePatternCounts(nodeCount, patternCount, treeModel.getLeafNodeCount());
+			nodeChanged = new boolean[nodeCount];
 			setTipNodePatternInclusion();
+			Arrays.fill(nodeChanged, true);
+		} else {
+			setChangedNodes();
 		}
 
 		// Determine post-order traversal
-		postOrderNodeList = postOrderTraversalList(treeModel);
+		postOrderNodeList = getPostOrderNodeList();
 
-		// Do post-order traversal
+		// Do post-order traversal, re-summing only the changed nodes
+		final FlatTree tree = getFlatTree();
 		for (int postOrderIndex = 0; postOrderIndex < nodeCount; postOrderIndex++) {
-			Node node = treeModel.getNode(postOrderNodeList[postOrderIndex]);
-			final int nChildren = node.getChildCount();
+			final int nodeNumber = postOrderNodeList[postOrderIndex];
+			if (!nodeChanged[nodeNumber]) {
+				continue;
+			}
+			final int nChildren = tree.getChildCount(nodeNumber);
 			if (nChildren > 0) {
-				final int nodeNumber = node.getNr();
 				for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-					extantInTipsBelow[nodeNumber * patternCount + patternIndex] = 0;
+					int extant = 0;
 					for (int j = 0; j < nChildren; j++) {
-						final int childIndex = node.getChild(j).getNr();
-						extantInTipsBelow[nodeNumber * patternCount
-								+ patternIndex] += extantInTipsBelow[childIndex * patternCount + patternIndex];
+						extant += extantInTipsBelow.get(tree.getChild(nodeNumber, j), patternIndex);
 					}
+					extantInTipsBelow.set(nodeNumber, patternIndex, extant);
+					nodePatternInclusion.set(nodeNumber, patternIndex, extant >= extantInTips[patternIndex]);
 				}
 			}
 		}
 
-		for (int i = treeModel.getLeafNodeCount(); i < treeModel.getNodeCount(); ++i) {
+		setPatternMrca();
+
+		nodePatternInclusionKnown = true;
+	}
+
+	/**
+	 * The first node in post-order that has all present tips of a pattern
+	 * below it is their MRCA. Patterns that are absent from all tips are
+	 * included at every node and get no MRCA.
+	 *
+	 * An MRCA can only move if the old one is among the changed nodes, and
+	 * then the new one is a changed node as well, so only those are searched.
+	 */
+	private void setPatternMrca() {
+		if (patternMrca == null) {
+			patternMrca = new int[patternCount];
+			storedPatternMrca = new int[patternCount];
+			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+				patternMrca[patternIndex] = (extantInTips[patternIndex] > 0 ? MRCA_UNKNOWN : -1);
+			}
+		} else {
 			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-				nodePatternInclusion[i * patternCount + patternIndex] = (extantInTipsBelow[i * patternCount
-						+ patternIndex] >= extantInTips[patternIndex]);
+				if (patternMrca[patternIndex] >= 0 && nodeChanged[patternMrca[patternIndex]]) {
+					patternMrca[patternIndex] = MRCA_UNKNOWN;
+				}
 			}
 		}
+		for (int postOrderIndex = 0; postOrderIndex < nodeCount; postOrderIndex++) {
+			final int nodeNumber = postOrderNodeList[postOrderIndex];
+			if (!nodeChanged[nodeNumber]) {
+				continue;
+			}
+			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+				if (patternMrca[patternIndex] == MRCA_UNKNOWN
+						&& extantInTipsBelow.get(nodeNumber, patternIndex) >= extantInTips[patternIndex]) {
+					patternMrca[patternIndex] = nodeNumber;
+				}
+			}
+		}
+	}
 
-		nodePatternInclusionKnown = true;
+	/**
+	 * With mrcaPaths, the patterns are summed over the paths from their MRCAs
+	 * only, so neither the tip counts nor the inclusion are kept per node and
+	 * pattern. In pre-order, the present tips of a pattern lie in the
+	 * subtree of their MRCA, which is therefore the MRCA of the first and the
+	 * last of them. Those are found in one pass over the packed tip presence,
+	 * and the MRCA by going up from the first tip to the first node whose
+	 * subtree contains the last. This is redone only when the topology
+	 * changed.
+	 */
+	private void setPatternMrcaFromTips() {
+		if (presence == null) {
+			presence = TipPresence.fromAlignment(patterns, deathState);
+			taxonOfTip = new int[treeModel.getLeafNodeCount()];
+			for (int i = 0; i < taxonOfTip.length; i++) {
+				taxonOfTip[i] = patterns.getTaxonIndex(treeModel.getNode(i).getID());
+			}
+			if (patternMrca == null) {
+				patternMrca = new int[patternCount];
+				storedPatternMrca = new int[patternCount];
+			}
+			firstTip = new int[patternCount];
+			lastTip = new int[patternCount];
+		} else if (filthyNodeCount == 0) {
+			return;
+		}
+
+		setPreOrder();
+		Arrays.fill(firstTip, -1);
+		for (int i = 0; i < taxonOfTip.length; i++) {
+			final int position = preOrderIndex[i];
+			for (int w = 0; w < presence.getWordsPerTaxon(); w++) {
+				long word = presence.getWord(taxonOfTip[i], w);
+				while (word != 0) {
+					final int patternIndex = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					if (firstTip[patternIndex] < 0) {
+						firstTip[patternIndex] = i;
+						lastTip[patternIndex] = i;
+					} else if (position < preOrderIndex[firstTip[patternIndex]]) {
+						firstTip[patternIndex] = i;
+					} else if (position > preOrderIndex[lastTip[patternIndex]]) {
+						lastTip[patternIndex] = i;
+					}
+				}
+			}
+		}
+
+		final FlatTree tree = getFlatTree();
+		for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+			int mrca = firstTip[patternIndex];
+			if (mrca >= 0) {
+				final int last = preOrderIndex[lastTip[patternIndex]];
+				while (preOrderIndex[mrca] + subtreeSize[mrca] <= last) {
+					mrca = tree.getParent(mrca);
+				}
+			}
+			// patterns absent from all tips are included at every node
+			patternMrca[patternIndex] = mrca;
+		}
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		if (u0 != null) {
+			System.arraycopy(u0, 0, storedU0, 0, u0.length);
+			System.arraycopy(p, 0, storedP, 0, p.length);
+		}
+		if (extantInTipsBelow != null) {
+			extantInTipsBelow.store();
+		}
 	}
 
+	@Override
+	public void restore() {
+		super.restore();
+		if (u0 != null) {
+			double[] tmp = storedU0;
+			storedU0 = u0;
+			u0 = tmp;
+			tmp = storedP;
+			storedP = p;
+			p = tmp;
+		}
+		if (extantInTipsBelow != null) {
+			extantInTipsBelow.restore();
+		}
+	}
+
+	private static final int MRCA_UNKNOWN = -2;
+
 	private int[] extantInTips;
-	private int[] extantInTipsBelow; // Easier to store/restore (later) if 1D
-										// array
+	protected NodePatternCounts extantInTipsBelow;
+	private boolean[] nodeChanged;
+
+	// for mrcaPaths only: the presence of the patterns in the taxa, the
+	// taxon of each tip, and the first and last present tip of each pattern
+	// in pre-order
+	private TipPresence presence;
+	private int[] taxonOfTip;
+	private int[] firstTip;
+	private int[] lastTip;
+
+	private double[] storedU0;
+	private double[] storedP;
+	// nodes whose u0 needs recalculating
+	private boolean[] weightNodeChanged;
 
 	private int[] postOrderNodeList;
 
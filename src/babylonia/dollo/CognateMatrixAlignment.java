@@ -0,0 +1,407 @@
+/*
+ * CognateMatrixAlignment.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.evolution.datatype.DataType;
+
+/**
+ * The binary format is big-endian:
+ * <ul>
+ * <li>the four bytes "COGM"</li>
+ * <li>int: the number of taxa T</li>
+ * <li>int: the number of cognate sets</li>
+ * <li>for each taxon: unsigned short length and the UTF-8 bytes of its
+ * name</li>
+ * <li>for each cognate set: (T + 7) / 8 bytes with the bit of taxon t set
+ * where the cognate set is present, then as many bytes with the bit set
+ * where the taxon's data is missing. The bit of taxon t is bit t % 8 of byte
+ * t / 8; missing data takes precedence.</li>
+ * </ul>
+ */
+@Description("Cognate presence/absence matrix read from a CSV or binary file through a memory map. The cognate sets "
+		+ "are compressed into patterns while reading, without building a sequence for each taxon, and the "
+		+ "presence of the patterns in the tips is packed for the observation processes.")
+public class CognateMatrixAlignment extends PatternAlignment {
+	public enum Format {
+		auto, csv, binary
+	}
+
+	public Input<String> fileInput = new Input<String>("file", "file to read the matrix from", Validate.REQUIRED);
+	public Input<Format> formatInput = new Input<Format>("format",
+			"csv: one line per taxon, its name followed by one single-character cell per cognate set, separated "
+					+ "by commas; binary: see the class documentation; auto (default): csv if the file name ends "
+					+ "in .csv, binary otherwise",
+			Format.auto, Format.values());
+	public Input<Boolean> headerInput = new Input<Boolean>("header",
+			"whether the first line of a csv file is a header to be skipped", false);
+
+	private static final byte[] MAGIC = { 'C', 'O', 'G', 'M' };
+
+	// bytes mapped at a time when reading through the file; the file itself
+	// may be of any size
+	int windowSize = 1 << 26;
+
+	private final List<String> taxa = new ArrayList<String>();
+	private final Map<PatternKey, Integer> patternIndices = new HashMap<PatternKey, Integer>();
+	private final List<int[]> matrixPatterns = new ArrayList<int[]>();
+	private int[] matrixWeights = new int[16];
+	// the cells of the csv line being read
+	private char[] lineCells = new char[16];
+
+	@Override
+	public void initAndValidate() {
+		final MutationDeathType dataType = getPresenceDataType();
+		final File file = new File(fileInput.get());
+		Format format = formatInput.get();
+		if (format == Format.auto) {
+			format = (file.getName().toLowerCase().endsWith(".csv") ? Format.csv : Format.binary);
+		}
+
+		taxa.clear();
+		patternIndices.clear();
+		matrixPatterns.clear();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (format == Format.csv) {
+				readCsv(channel, dataType, file);
+			} else {
+				readBinary(channel, dataType, file);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not read " + file + ": " + e.getMessage(), e);
+		}
+
+		setPatterns(new ArrayList<String>(taxa), dataType, matrixPatterns.toArray(new int[matrixPatterns.size()][]),
+				Arrays.copyOf(matrixWeights, matrixPatterns.size()));
+		tipPresence = TipPresence.fromAlignment(this, dataType.DEATHSTATE);
+
+		// only needed while reading
+		patternIndices.clear();
+		matrixPatterns.clear();
+		lineCells = new char[16];
+	}
+
+	/**
+	 * Read the lines one after another through a single window, encoding the
+	 * cells of each taxon as they are read, then count the cognate sets
+	 * across the taxa. The codes take one byte per cell, less than the cell
+	 * and its separator take in the file.
+	 */
+	private void readCsv(FileChannel channel, MutationDeathType dataType, File file) throws IOException {
+		final MappedWindow lines = new MappedWindow(channel, windowSize);
+		final long size = lines.size();
+		final List<byte[]> rows = new ArrayList<byte[]>();
+		boolean header = headerInput.get();
+		for (long lineStart = 0; lineStart < size;) {
+			long lineEnd = lineStart;
+			while (lineEnd < size && lines.get(lineEnd) != '\n') {
+				++lineEnd;
+			}
+			long comma = lineStart;
+			while (comma < lineEnd && lines.get(comma) != ',') {
+				++comma;
+			}
+			final String name = decode(lines, lineStart, comma).trim();
+			if (header) {
+				header = false;
+			} else if (!name.isEmpty() || comma < lineEnd) {
+				taxa.add(name);
+				final int cellCount = readCells(lines, comma, lineEnd, name, file);
+				if (!rows.isEmpty() && cellCount != rows.get(0).length) {
+					throw new IllegalArgumentException("Taxon " + name + " in " + file + " has " + cellCount
+							+ " cognate sets, but " + taxa.get(0) + " has " + rows.get(0).length);
+				}
+				rows.add(encode(dataType, cellCount, name, file));
+			}
+			lineStart = lineEnd + 1;
+		}
+
+		final int taxonCount = rows.size();
+		final int cognateSetCount = (taxonCount == 0 ? 0 : rows.get(0).length);
+		final byte[][] codes = rows.toArray(new byte[taxonCount][]);
+		rows.clear();
+		final int[] pattern = new int[taxonCount];
+		for (int cognateSet = 0; cognateSet < cognateSetCount; ++cognateSet) {
+			for (int taxon = 0; taxon < taxonCount; ++taxon) {
+				pattern[taxon] = codes[taxon][cognateSet] & 0xff;
+			}
+			countPattern(pattern);
+		}
+	}
+
+	/**
+	 * Read the cells of a line into lineCells.
+	 *
+	 * @param pos
+	 *            the separator before the first cell
+	 * @return the number of cells
+	 */
+	private int readCells(MappedWindow line, long pos, long lineEnd, String name, File file) throws IOException {
+		int cellCount = 0;
+		while (pos < lineEnd) {
+			pos = skipBlanks(line, pos + 1, lineEnd);
+			if (pos >= lineEnd || line.get(pos) == ',') {
+				throw new IllegalArgumentException("Empty cell for taxon " + name + " in " + file);
+			}
+			final char cell = (char) (line.get(pos) & 0xff);
+			if (cell >= 128) {
+				throw new IllegalArgumentException("Unknown code " + cell + " for taxon " + name + " in " + file);
+			}
+			pos = skipBlanks(line, pos + 1, lineEnd);
+			if (pos < lineEnd && line.get(pos) != ',') {
+				throw new IllegalArgumentException(
+						"Cells must be single characters, but taxon " + name + " in " + file + " has more");
+			}
+			if (cellCount == lineCells.length) {
+				lineCells = Arrays.copyOf(lineCells, 2 * lineCells.length);
+			}
+			lineCells[cellCount++] = cell;
+		}
+		return cellCount;
+	}
+
+	/**
+	 * Encode the cells of one taxon at once.
+	 */
+	private byte[] encode(MutationDeathType dataType, int cellCount, String name, File file) {
+		final byte[] codes;
+		try {
+			codes = dataType.encode(CharBuffer.wrap(lineCells, 0, cellCount));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Taxon " + name + " in " + file + ": " + e.getMessage(), e);
+		}
+		if (codes.length != cellCount) {
+			throw new IllegalArgumentException("Taxon " + name + " in " + file + " has blank cells");
+		}
+		return codes;
+	}
+
+	private static long skipBlanks(MappedWindow line, long pos, long lineEnd) throws IOException {
+		while (pos < lineEnd && (line.get(pos) == ' ' || line.get(pos) == '\t' || line.get(pos) == '\r')) {
+			++pos;
+		}
+		return pos;
+	}
+
+	private static String decode(MappedWindow window, long from, long to) throws IOException {
+		if (to - from > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Taxon name of " + (to - from) + " bytes is too long");
+		}
+		byte[] bytes = new byte[(int) (to - from)];
+		window.get(from, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void readBinary(FileChannel channel, MutationDeathType dataType, File file) throws IOException {
+		final MappedWindow data = new MappedWindow(channel, windowSize);
+		long pos = 0;
+		for (byte b : MAGIC) {
+			if (pos == data.size() || data.get(pos++) != b) {
+				throw new IllegalArgumentException(file + " is not a binary cognate matrix");
+			}
+		}
+		final int taxonCount = data.getInt(pos);
+		final int cognateSetCount = data.getInt(pos + 4);
+		pos += 8;
+		for (int taxon = 0; taxon < taxonCount; ++taxon) {
+			final int length = ((data.get(pos) & 0xff) << 8) | (data.get(pos + 1) & 0xff);
+			taxa.add(decode(data, pos + 2, pos + 2 + length));
+			pos += 2 + length;
+		}
+		final int rowBytes = (taxonCount + 7) >>> 3;
+		if (data.size() - pos != 2L * rowBytes * cognateSetCount) {
+			throw new IllegalArgumentException(file + " should have " + 2L * rowBytes * cognateSetCount
+					+ " bytes of cognate sets, but has " + (data.size() - pos));
+		}
+
+		if (dataType.getStateCount() != 2) {
+			throw new IllegalArgumentException("Binary cognate matrices need a presence/absence data type");
+		}
+		final int absentCode = stateCode(dataType, dataType.DEATHSTATE);
+		final int presentCode = stateCode(dataType, 1 - dataType.DEATHSTATE);
+		final int missingCode = dataType.encode(String.valueOf(DataType.MISSING_CHAR))[0];
+		final byte[] row = new byte[2 * rowBytes];
+		final int[] pattern = new int[taxonCount];
+		for (int cognateSet = 0; cognateSet < cognateSetCount; ++cognateSet) {
+			data.get(pos, row);
+			pos += row.length;
+			for (int taxon = 0; taxon < taxonCount; ++taxon) {
+				final int bit = 1 << (taxon & 7);
+				if ((row[rowBytes + (taxon >>> 3)] & bit) != 0) {
+					pattern[taxon] = missingCode;
+				} else if ((row[taxon >>> 3] & bit) != 0) {
+					pattern[taxon] = presentCode;
+				} else {
+					pattern[taxon] = absentCode;
+				}
+			}
+			countPattern(pattern);
+		}
+	}
+
+	/**
+	 * @return the code that stands for exactly the given state
+	 */
+	private static int stateCode(MutationDeathType dataType, int state) {
+		for (int code = 0; code < dataType.getCodeMap().length(); ++code) {
+			final int[] states = dataType.getStatesForCode(code);
+			if (states.length == 1 && states[0] == state) {
+				return code;
+			}
+		}
+		throw new IllegalArgumentException("Data type " + dataType.getID() + " has no code for state " + state);
+	}
+
+	/**
+	 * Count a cognate set. The pattern array is reused by the caller, so it
+	 * is copied only when it is new; the copy is both the hash key and the
+	 * pattern handed to the alignment.
+	 */
+	private void countPattern(int[] pattern) {
+		Integer patternIndex = patternIndices.get(new PatternKey(pattern));
+		if (patternIndex == null) {
+			final int[] copy = pattern.clone();
+			if (matrixPatterns.size() == matrixWeights.length) {
+				matrixWeights = Arrays.copyOf(matrixWeights, 2 * matrixWeights.length);
+			}
+			patternIndices.put(new PatternKey(copy), matrixPatterns.size());
+			matrixWeights[matrixPatterns.size()] = 1;
+			matrixPatterns.add(copy);
+		} else {
+			++matrixWeights[patternIndex];
+		}
+	}
+
+	/**
+	 * The codes of a cognate set in all taxa, as a hash key.
+	 */
+	private static class PatternKey {
+		private final int[] codes;
+		private final int hash;
+
+		PatternKey(int[] codes) {
+			this.codes = codes;
+			this.hash = Arrays.hashCode(codes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof PatternKey && Arrays.equals(codes, ((PatternKey) other).codes);
+		}
+	}
+
+	/**
+	 * Read access to a file through a memory map of a bounded window, which
+	 * is moved on when a position outside of it is read.
+	 */
+	private static class MappedWindow {
+		private final FileChannel channel;
+		private final long size;
+		private final int windowSize;
+		private MappedByteBuffer window;
+		// the window maps the bytes from start to end
+		private long start;
+		private long end;
+
+		MappedWindow(FileChannel channel, int windowSize) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.windowSize = windowSize;
+		}
+
+		long size() {
+			return size;
+		}
+
+		byte get(long position) throws IOException {
+			if (position < start || position >= end) {
+				move(position);
+			}
+			return window.get((int) (position - start));
+		}
+
+		/**
+		 * Fill bytes with the bytes of the file from position on.
+		 */
+		void get(long position, byte[] bytes) throws IOException {
+			for (int done = 0; done < bytes.length;) {
+				if (position < start || position >= end) {
+					move(position);
+				}
+				final int offset = (int) (position - start);
+				final int length = (int) Math.min(bytes.length - done, end - position);
+				for (int i = 0; i < length; ++i) {
+					bytes[done + i] = window.get(offset + i);
+				}
+				done += length;
+				position += length;
+			}
+		}
+
+		/**
+		 * @return the big-endian int at position
+		 */
+		int getInt(long position) throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; ++i) {
+				value = (value << 8) | (get(position + i) & 0xff);
+			}
+			return value;
+		}
+
+		private void move(long position) throws IOException {
+			if (position < 0 || position >= size) {
+				throw new EOFException("Position " + position + " is outside of the file");
+			}
+			start = position;
+			end = Math.min(size, position + windowSize);
+			window = channel.map(MapMode.READ_ONLY, start, end - start);
+		}
+	}
+}
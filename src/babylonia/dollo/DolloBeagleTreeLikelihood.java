@@ -0,0 +1,51 @@
+/*
+ * DolloBeagleTreeLikelihood.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import beagle.Beagle;
+import beast.core.Description;
+import beast.evolution.likelihood.BeagleTreeLikelihood;
+
+@Description("BEAGLE tree likelihood that gives the Dollo observation processes access to the partials of all nodes")
+public class DolloBeagleTreeLikelihood extends BeagleTreeLikelihood {
+
+	/**
+	 * @return whether a BEAGLE instance was found; if not, this object must
+	 *         not be used
+	 */
+	public boolean hasBeagleInstance() {
+		return beagle != null;
+	}
+
+	/**
+	 * Copy the partials of a node out of BEAGLE, in the same layout as
+	 * LikelihoodCore.getNodePartials.
+	 */
+	public void getNodePartials(int nodeIndex, double[] partials) {
+		beagle.getPartials(partialBufferHelper.getOffsetIndex(nodeIndex), Beagle.NONE, partials);
+	}
+}
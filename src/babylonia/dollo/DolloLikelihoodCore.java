@@ -0,0 +1,69 @@
+/*
+ * DolloLikelihoodCore.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import beast.evolution.likelihood.BeerLikelihoodCore;
+
+/**
+ * The standard Java likelihood core, with read access to the partials of a
+ * node without copying them.
+ */
+public class DolloLikelihoodCore extends BeerLikelihoodCore {
+
+	public DolloLikelihoodCore(int stateCount) {
+		super(stateCount);
+	}
+
+	/**
+	 * @return the array holding the current partials of a node, laid out as
+	 *         in {@link #getNodePartials(int, double[])}: the categories one
+	 *         after the other, each with the states of every pattern. This is
+	 *         the core's own array, so it must not be modified, and it is only
+	 *         valid until the partials of the node are next calculated,
+	 *         stored or restored.
+	 */
+	public double[] getNodePartialsView(int nodeIndex) {
+		return partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+	}
+
+	/**
+	 * @return whether the partials are scaled
+	 */
+	public boolean isUsingScaling() {
+		return useScaling;
+	}
+
+	/**
+	 * @return the array holding the log scale factors per pattern by which
+	 *         the current partials of the node itself were divided, without
+	 *         those of its descendants. Only valid while scaling is used, and
+	 *         read-only like {@link #getNodePartialsView(int)}.
+	 */
+	public double[] getNodeLogScalingFactorsView(int nodeIndex) {
+		return scalingFactors[currentPartialsIndex[nodeIndex]][nodeIndex];
+	}
+}
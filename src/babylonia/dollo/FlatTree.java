@@ -0,0 +1,238 @@
+/*
+ * FlatTree.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.TreeInterface;
+
+/**
+ * A structure-of-arrays copy of a tree, indexed by node number: parents,
+ * children, a post-order of the nodes, branch lengths and clock rates. The
+ * observation processes walk these arrays instead of the Node objects, and
+ * only the parts that changed are copied over from the tree.
+ *
+ * Like the tree, it can be stored and restored. Each group of arrays is
+ * saved the first time it is written after {@link #store()}.
+ */
+public class FlatTree {
+	private final int nodeCount;
+
+	private int root;
+	private int storedRoot;
+	// parent of each node, -1 for the root
+	private int[] parent;
+	private int[] storedParent;
+	// the children of node i are children[childStart[i]] to
+	// children[childStart[i + 1] - 1]
+	private int[] childStart;
+	private int[] storedChildStart;
+	private int[] children;
+	private int[] storedChildren;
+	// children before their parents, the root last
+	private int[] postOrder;
+	private int[] storedPostOrder;
+	private boolean topologyChanged = false;
+
+	private double[] branchLength;
+	private double[] storedBranchLength;
+	private double[] branchRate;
+	private double[] storedBranchRate;
+	private boolean branchesChanged = false;
+
+	public FlatTree(int nodeCount) {
+		this.nodeCount = nodeCount;
+		parent = new int[nodeCount];
+		storedParent = new int[nodeCount];
+		childStart = new int[nodeCount + 1];
+		storedChildStart = new int[nodeCount + 1];
+		children = new int[nodeCount];
+		storedChildren = new int[nodeCount];
+		postOrder = new int[nodeCount];
+		storedPostOrder = new int[nodeCount];
+		branchLength = new double[nodeCount];
+		storedBranchLength = new double[nodeCount];
+		branchRate = new double[nodeCount];
+		storedBranchRate = new double[nodeCount];
+	}
+
+	/**
+	 * Copy parents and children of all nodes from the tree, and derive the
+	 * post-order.
+	 */
+	public void setTopology(TreeInterface tree) {
+		if (!topologyChanged) {
+			// the arrays are rewritten completely, so swapping saves them
+			int[] tmp = storedParent;
+			storedParent = parent;
+			parent = tmp;
+			tmp = storedChildStart;
+			storedChildStart = childStart;
+			childStart = tmp;
+			tmp = storedChildren;
+			storedChildren = children;
+			children = tmp;
+			tmp = storedPostOrder;
+			storedPostOrder = postOrder;
+			postOrder = tmp;
+			storedRoot = root;
+			topologyChanged = true;
+		}
+
+		int next = 0;
+		for (int i = 0; i < nodeCount; ++i) {
+			Node node = tree.getNode(i);
+			parent[i] = node.isRoot() ? -1 : node.getParent().getNr();
+			childStart[i] = next;
+			for (int c = 0; c < node.getChildCount(); ++c) {
+				children[next++] = node.getChild(c).getNr();
+			}
+		}
+		childStart[nodeCount] = next;
+		root = tree.getRoot().getNr();
+
+		// same order as AnyTipObservationProcess.postOrderTraversalList
+		int idx = nodeCount - 1;
+		int cidx = nodeCount - 1;
+		postOrder[idx] = root;
+		while (cidx > 0) {
+			final int node = postOrder[idx];
+			for (int c = childStart[node]; c < childStart[node + 1]; ++c) {
+				cidx -= 1;
+				postOrder[cidx] = children[c];
+			}
+			idx -= 1;
+		}
+	}
+
+	/**
+	 * Copy branch lengths and clock rates from the tree, for all nodes.
+	 */
+	public void setBranches(TreeInterface tree, BranchRateModel branchRateModel) {
+		saveBranches();
+		for (int i = 0; i < nodeCount; ++i) {
+			setBranch(tree.getNode(i), branchRateModel);
+		}
+	}
+
+	/**
+	 * Copy branch lengths and clock rates from the tree, only for the first
+	 * nodeListCount nodes numbered in nodeList.
+	 */
+	public void setBranches(TreeInterface tree, BranchRateModel branchRateModel, int[] nodeList, int nodeListCount) {
+		saveBranches();
+		for (int d = 0; d < nodeListCount; ++d) {
+			setBranch(tree.getNode(nodeList[d]), branchRateModel);
+		}
+	}
+
+	private void saveBranches() {
+		if (!branchesChanged) {
+			System.arraycopy(branchLength, 0, storedBranchLength, 0, nodeCount);
+			System.arraycopy(branchRate, 0, storedBranchRate, 0, nodeCount);
+			branchesChanged = true;
+		}
+	}
+
+	private void setBranch(Node node, BranchRateModel branchRateModel) {
+		final int i = node.getNr();
+		branchLength[i] = node.getLength();
+		branchRate[i] = node.isRoot() ? 1.0 : branchRateModel.getRateForBranch(node);
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the number of the parent of node i, or -1 for the root
+	 */
+	public int getParent(int i) {
+		return parent[i];
+	}
+
+	public int getChildCount(int i) {
+		return childStart[i + 1] - childStart[i];
+	}
+
+	public int getChild(int i, int c) {
+		return children[childStart[i] + c];
+	}
+
+	/**
+	 * @return the node numbers, children before their parents. The array is
+	 *         reused and must not be modified.
+	 */
+	public int[] getPostOrder() {
+		return postOrder;
+	}
+
+	public double getBranchLength(int i) {
+		return branchLength[i];
+	}
+
+	public double getBranchRate(int i) {
+		return branchRate[i];
+	}
+
+	public void store() {
+		topologyChanged = false;
+		branchesChanged = false;
+	}
+
+	public void restore() {
+		if (topologyChanged) {
+			int[] tmp = storedParent;
+			storedParent = parent;
+			parent = tmp;
+			tmp = storedChildStart;
+			storedChildStart = childStart;
+			childStart = tmp;
+			tmp = storedChildren;
+			storedChildren = children;
+			children = tmp;
+			tmp = storedPostOrder;
+			storedPostOrder = postOrder;
+			postOrder = tmp;
+			root = storedRoot;
+			topologyChanged = false;
+		}
+		if (branchesChanged) {
+			double[] tmp = storedBranchLength;
+			storedBranchLength = branchLength;
+			branchLength = tmp;
+			tmp = storedBranchRate;
+			storedBranchRate = branchRate;
+			branchRate = tmp;
+			branchesChanged = false;
+		}
+	}
+}
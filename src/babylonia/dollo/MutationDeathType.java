@@ -28,6 +28,8 @@
 package babylonia.dollo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import beast.core.Description;
 import beast.core.Input;
@@ -47,6 +49,15 @@ public class MutationDeathType extends DataType.Base {
 
 	public int DEATHSTATE = 0;
 
+	// what DataType.Base.string2state strips from sequences
+	private static final char[] WHITESPACE = { ' ', '\t', '\n', '\u000B', '\f', '\r' };
+	private static final int SKIP = -2;
+
+	// code of each ASCII character, -1 if it has none, or SKIP
+	private int[] charCodes;
+	// whether the states of each code include the death state
+	private boolean[] deathCodes;
+
 	@Override
 	public void initAndValidate() {
 		// FIXME This is VERY naive
@@ -76,22 +87,100 @@ public class MutationDeathType extends DataType.Base {
 			}
 
 			stateCount = dataType.getStateCount() + 1;
-			ArrayList<int[]> mapCodeToStateSetList = new ArrayList<int[]>(dataType.getStateCount());
-			DEATHSTATE = 0;
-			mapCodeToStateSetList.add(new int[] { stateCount - 1 });
-			int i = 0;
-			try {
-				while (true) {
-					mapCodeToStateSetList.add(dataType.getStatesForCode(i));
-					++i;
-				}
-			} catch (IndexOutOfBoundsException e) {
-				// Do nothing: This exception means the end of the copy process
+			final String baseCodeMap = dataType.getCodeMap();
+			mapCodeToStateSet = new int[baseCodeMap.length() + 1][];
+			mapCodeToStateSet[0] = new int[] { stateCount - 1 };
+			for (int code = 0; code < baseCodeMap.length(); ++code) {
+				mapCodeToStateSet[code + 1] = dataType.getStatesForCode(code);
 			}
-			mapCodeToStateSetList.toArray(mapCodeToStateSet);
-			codeMap = "" + deathCode + dataType.getCodeMap();
+			codeMap = "" + deathCode + baseCodeMap;
 			DEATHSTATE = stateCount - 1;
 		}
+		setCodeTables();
+	}
+
+	/**
+	 * Look up the code of every ASCII character as DataType.Base.string2state
+	 * would find it, and which codes allow the death state.
+	 */
+	private void setCodeTables() {
+		charCodes = new int[128];
+		for (char c = 0; c < charCodes.length; ++c) {
+			charCodes[c] = codeMap.indexOf(Character.toUpperCase(c));
+		}
+		for (char c : WHITESPACE) {
+			charCodes[c] = SKIP;
+		}
+
+		deathCodes = new boolean[mapCodeToStateSet.length];
+		for (int code = 0; code < mapCodeToStateSet.length; ++code) {
+			for (int state : mapCodeToStateSet[code]) {
+				if (state == DEATHSTATE) {
+					deathCodes[code] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the code of a character as string2state would give it, -1 if
+	 *         it has none, or SKIP for whitespace
+	 */
+	private int getCode(char c) {
+		if (c < charCodes.length) {
+			return charCodes[c];
+		}
+		return codeMap.indexOf(Character.toUpperCase(c));
+	}
+
+	/**
+	 * Encode a sequence in one pass over a lookup table, with the same
+	 * result as {@link #string2state(String)}: whitespace is skipped and
+	 * lower case letters stand for upper case ones.
+	 *
+	 * @return the code of each character
+	 */
+	public byte[] encode(CharSequence data) {
+		if (codeMap.length() > Byte.MAX_VALUE + 1) {
+			throw new IllegalArgumentException(
+					"Data type " + getID() + " has more codes than fit into a byte: " + codeMap.length());
+		}
+		byte[] codes = new byte[data.length()];
+		int n = 0;
+		for (int i = 0; i < data.length(); ++i) {
+			final char c = data.charAt(i);
+			final int code = getCode(c);
+			if (code >= 0) {
+				codes[n++] = (byte) code;
+			} else if (code != SKIP) {
+				throw new IllegalArgumentException("Could not find code " + c + " in codemap");
+			}
+		}
+		return (n == codes.length ? codes : Arrays.copyOf(codes, n));
+	}
+
+	@Override
+	public List<Integer> string2state(String data) {
+		List<Integer> sequence = new ArrayList<Integer>(data.length());
+		for (int i = 0; i < data.length(); ++i) {
+			final char c = data.charAt(i);
+			final int code = getCode(c);
+			if (code >= 0) {
+				sequence.add(code);
+			} else if (code != SKIP) {
+				throw new IllegalArgumentException("Could not find code " + c + " in codemap");
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return for each code, whether its set of states contains the death
+	 *         state, i.e. whether a tip with that code may lack the trait.
+	 *         The array is shared and must not be modified.
+	 */
+	public boolean[] getDeathCodes() {
+		return deathCodes;
 	}
 
 	@Override
@@ -0,0 +1,79 @@
+/*
+ * NodePatternBitSet.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+/**
+ * A nodeCount x patternCount bit matrix, stored as one row of 64-bit words
+ * per node, with lazy per-node backup (see {@link NodeRows}).
+ */
+public class NodePatternBitSet extends NodeRows {
+	private final int wordsPerNode;
+
+	private final long[] bits;
+	private final long[] storedBits;
+
+	public NodePatternBitSet(int nodeCount, int patternCount) {
+		super(nodeCount, patternCount);
+		this.wordsPerNode = (patternCount + 63) >>> 6;
+		bits = new long[nodeCount * wordsPerNode];
+		storedBits = new long[nodeCount * wordsPerNode];
+	}
+
+	public int getWordsPerNode() {
+		return wordsPerNode;
+	}
+
+	public boolean get(int node, int pattern) {
+		return (bits[node * wordsPerNode + (pattern >>> 6)] & (1L << pattern)) != 0;
+	}
+
+	/**
+	 * @return word w of the row of node; bit b of it is pattern 64*w+b
+	 */
+	public long getWord(int node, int w) {
+		return bits[node * wordsPerNode + w];
+	}
+
+	public void set(int node, int pattern, boolean value) {
+		final int index = node * wordsPerNode + (pattern >>> 6);
+		final long mask = 1L << pattern;
+		if (((bits[index] & mask) != 0) != value) {
+			saveRow(node);
+			bits[index] ^= mask;
+		}
+	}
+
+	@Override
+	protected void backupRow(int node) {
+		System.arraycopy(bits, node * wordsPerNode, storedBits, node * wordsPerNode, wordsPerNode);
+	}
+
+	@Override
+	protected void restoreRow(int node) {
+		System.arraycopy(storedBits, node * wordsPerNode, bits, node * wordsPerNode, wordsPerNode);
+	}
+}
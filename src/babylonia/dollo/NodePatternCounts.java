@@ -0,0 +1,97 @@
+/*
+ * NodePatternCounts.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+/**
+ * A nodeCount x patternCount matrix of counts, stored node by node, with
+ * lazy per-node backup (see {@link NodeRows}). Counts up to 65535 are kept
+ * in 16 bits each.
+ */
+public class NodePatternCounts extends NodeRows {
+	// one of these pairs is null
+	private final char[] shortCounts;
+	private final char[] storedShortCounts;
+	private final int[] counts;
+	private final int[] storedCounts;
+
+	/**
+	 * @param maxCount
+	 *            the largest count that will be set
+	 */
+	public NodePatternCounts(int nodeCount, int patternCount, int maxCount) {
+		super(nodeCount, patternCount);
+		if (maxCount <= Character.MAX_VALUE) {
+			shortCounts = new char[nodeCount * patternCount];
+			storedShortCounts = new char[nodeCount * patternCount];
+			counts = null;
+			storedCounts = null;
+		} else {
+			shortCounts = null;
+			storedShortCounts = null;
+			counts = new int[nodeCount * patternCount];
+			storedCounts = new int[nodeCount * patternCount];
+		}
+	}
+
+	public int get(int node, int pattern) {
+		if (shortCounts != null) {
+			return shortCounts[node * patternCount + pattern];
+		}
+		return counts[node * patternCount + pattern];
+	}
+
+	public void set(int node, int pattern, int value) {
+		final int index = node * patternCount + pattern;
+		if (shortCounts != null) {
+			if (shortCounts[index] != value) {
+				saveRow(node);
+				shortCounts[index] = (char) value;
+			}
+		} else if (counts[index] != value) {
+			saveRow(node);
+			counts[index] = value;
+		}
+	}
+
+	@Override
+	protected void backupRow(int node) {
+		if (shortCounts != null) {
+			System.arraycopy(shortCounts, node * patternCount, storedShortCounts, node * patternCount, patternCount);
+		} else {
+			System.arraycopy(counts, node * patternCount, storedCounts, node * patternCount, patternCount);
+		}
+	}
+
+	@Override
+	protected void restoreRow(int node) {
+		if (shortCounts != null) {
+			System.arraycopy(storedShortCounts, node * patternCount, shortCounts, node * patternCount, patternCount);
+		} else {
+			System.arraycopy(storedCounts, node * patternCount, counts, node * patternCount, patternCount);
+		}
+	}
+}
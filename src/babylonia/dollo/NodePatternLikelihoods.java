@@ -0,0 +1,120 @@
+/*
+ * NodePatternLikelihoods.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+/**
+ * Per-node rows of pattern likelihoods that are always rewritten as a whole.
+ *
+ * Each node has two rows, one current and one backup. A node's first update
+ * after {@link #store()} only flips which row is current, so the values from
+ * before stay in the backup row and {@link #restore()} just flips back.
+ * Nothing is copied.
+ *
+ * In single precision mode the rows are stored as floats, and can only be
+ * accessed value by value, through {@link #get(int, int)} and
+ * {@link #set(int, int, double)}.
+ */
+public class NodePatternLikelihoods extends NodeRows {
+	private final double[][] values;
+	private final float[][] floatValues;
+	private final int[] current;
+
+	public NodePatternLikelihoods(int nodeCount, int patternCount) {
+		this(nodeCount, patternCount, false);
+	}
+
+	public NodePatternLikelihoods(int nodeCount, int patternCount, boolean singlePrecision) {
+		super(nodeCount, patternCount);
+		if (singlePrecision) {
+			values = null;
+			floatValues = new float[2][nodeCount * patternCount];
+		} else {
+			values = new double[2][nodeCount * patternCount];
+			floatValues = null;
+		}
+		current = new int[nodeCount];
+	}
+
+	public boolean isSinglePrecision() {
+		return floatValues != null;
+	}
+
+	public double get(int node, int pattern) {
+		if (floatValues != null) {
+			return floatValues[current[node]][node * patternCount + pattern];
+		}
+		return values[current[node]][node * patternCount + pattern];
+	}
+
+	/**
+	 * Set one value of the row of node, rounded to single precision if
+	 * applicable. As with {@link #startRowUpdate(int)}, the first change of a
+	 * row after {@link #store()} starts from undefined content, so every
+	 * value that is read later must be set again.
+	 */
+	public void set(int node, int pattern, double value) {
+		saveRow(node);
+		if (floatValues != null) {
+			floatValues[current[node]][node * patternCount + pattern] = (float) value;
+		} else {
+			values[current[node]][node * patternCount + pattern] = value;
+		}
+	}
+
+	/**
+	 * @return the array holding the row of node, starting at
+	 *         {@link #getOffset(int)}. It must only be read. Double
+	 *         precision mode only.
+	 */
+	public double[] getRow(int node) {
+		return values[current[node]];
+	}
+
+	/**
+	 * @return the array to write the new row of node to, starting at
+	 *         {@link #getOffset(int)}. Its old content is undefined. Double
+	 *         precision mode only.
+	 */
+	public double[] startRowUpdate(int node) {
+		saveRow(node);
+		return values[current[node]];
+	}
+
+	public int getOffset(int node) {
+		return node * patternCount;
+	}
+
+	@Override
+	protected void backupRow(int node) {
+		current[node] ^= 1;
+	}
+
+	@Override
+	protected void restoreRow(int node) {
+		current[node] ^= 1;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * NodeRows.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+/**
+ * Book-keeping for per-node rows of a nodeCount x patternCount matrix that
+ * need to be stored and restored.
+ *
+ * Storing is lazy: a row is copied to the backup only when it is first
+ * modified after {@link #store()}, so {@link #store()} and
+ * {@link #restore()} only touch the rows of nodes that actually changed.
+ * Subclasses call {@link #saveRow(int)} before modifying a row.
+ */
+public abstract class NodeRows {
+	protected final int nodeCount;
+	protected final int patternCount;
+
+	// Rows modified since the last store()
+	private final boolean[] rowSaved;
+	private final int[] savedRows;
+	private int savedRowCount = 0;
+
+	protected NodeRows(int nodeCount, int patternCount) {
+		this.nodeCount = nodeCount;
+		this.patternCount = patternCount;
+		rowSaved = new boolean[nodeCount];
+		savedRows = new int[nodeCount];
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	protected final void saveRow(int node) {
+		if (!rowSaved[node]) {
+			backupRow(node);
+			rowSaved[node] = true;
+			savedRows[savedRowCount++] = node;
+		}
+	}
+
+	/** Copy the current content of the row of node to the backup. */
+	abstract protected void backupRow(int node);
+
+	/** Copy the backup of the row of node back to the current content. */
+	abstract protected void restoreRow(int node);
+
+	/** Make the current state the one to return to on restore. */
+	public void store() {
+		for (int k = 0; k < savedRowCount; ++k) {
+			rowSaved[savedRows[k]] = false;
+		}
+		savedRowCount = 0;
+	}
+
+	/** Undo all modifications since the last store. */
+	public void restore() {
+		for (int k = 0; k < savedRowCount; ++k) {
+			final int node = savedRows[k];
+			restoreRow(node);
+			rowSaved[node] = false;
+		}
+		savedRowCount = 0;
+	}
+}
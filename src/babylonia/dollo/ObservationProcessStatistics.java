@@ -0,0 +1,281 @@
+/*
+ * ObservationProcessStatistics.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.util.Log;
+
+@Description("Counts and times the phases of the likelihood calculation of an observation process, and how often "
+		+ "its caches are valid. Collected only if given as statistics input of the observation process; can be "
+		+ "logged, and is published as JMX MBean.")
+public class ObservationProcessStatistics extends BEASTObject implements Loggable, ObservationProcessStatisticsMBean {
+	public Input<Boolean> jmxInput = new Input<Boolean>("jmx",
+			"register as JMX MBean under babylonia.dollo:type=ObservationProcessStatistics", true);
+
+	public enum Phase {
+		/** the partials, calculated by TreeLikelihood */
+		PEELING("peeling"),
+		/** setNodePatternInclusion */
+		INCLUSION("inclusion"),
+		/** calculateLogTreeWeightPerGainRate */
+		TREE_WEIGHT("treeWeight"),
+		/** summing the site likelihoods over the nodes */
+		ACCUMULATION("accumulation"),
+		/** the ascertainment correction, and the corrected log likelihoods */
+		ASCERTAINMENT("ascertainment");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+	}
+
+	public enum Cache {
+		TREE_WEIGHT("treeWeight"), NODE_PATTERN_INCLUSION("nodePatternInclusion"), AVERAGE_RATE("averageRate");
+
+		private final String label;
+
+		Cache(String label) {
+			this.label = label;
+		}
+	}
+
+	// Plain fields: they are only written by the thread running the chain,
+	// and a slightly stale value read over JMX does no harm.
+	private final long[] phaseCounts = new long[Phase.values().length];
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private final long[] cacheHits = new long[Cache.values().length];
+	private final long[] cacheMisses = new long[Cache.values().length];
+
+	// numbers the instances, so that each has its own MBean name
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	// set while registered as MBean
+	private ObjectName objectName;
+
+	@Override
+	public void initAndValidate() {
+		if (jmxInput.get()) {
+			register();
+		}
+	}
+
+	/**
+	 * Register as MBean, under the ID and a number unique to this instance,
+	 * unless already registered. The MBean stays registered when a logger
+	 * closes, since other loggers or JMX clients may still read it; call
+	 * {@link #unregister()} when done with this instance.
+	 */
+	private void register() {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			String name = (getID() == null ? "dollo" : getID());
+			objectName = new ObjectName("babylonia.dollo:type=ObservationProcessStatistics,name="
+					+ ObjectName.quote(name) + ",instance=" + instances.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			Log.warning.println("Could not register " + getID() + " as MBean: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Remove the MBean registered by {@link #initAndValidate()}, if any.
+	 */
+	public void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// already gone
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * @return the name this is registered under as MBean, or null
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * @return the time to pass to {@link #end(Phase, long)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void end(Phase phase, long start) {
+		phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+		++phaseCounts[phase.ordinal()];
+	}
+
+	/**
+	 * Count a look-up of a cache, which was valid or not.
+	 */
+	public void lookup(Cache cache, boolean hit) {
+		if (hit) {
+			++cacheHits[cache.ordinal()];
+		} else {
+			++cacheMisses[cache.ordinal()];
+		}
+	}
+
+	public long getCount(Phase phase) {
+		return phaseCounts[phase.ordinal()];
+	}
+
+	public double getMillis(Phase phase) {
+		return phaseNanos[phase.ordinal()] * 1e-6;
+	}
+
+	/**
+	 * @return the fraction of look-ups that found the cache valid, or NaN if
+	 *         there were none
+	 */
+	public double getHitRate(Cache cache) {
+		final long hits = cacheHits[cache.ordinal()];
+		return hits / (double) (hits + cacheMisses[cache.ordinal()]);
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < phaseCounts.length; ++i) {
+			phaseCounts[i] = 0;
+			phaseNanos[i] = 0;
+		}
+		for (int i = 0; i < cacheHits.length; ++i) {
+			cacheHits[i] = 0;
+			cacheMisses[i] = 0;
+		}
+	}
+
+	@Override
+	public long getPeelingCount() {
+		return getCount(Phase.PEELING);
+	}
+
+	@Override
+	public double getPeelingMillis() {
+		return getMillis(Phase.PEELING);
+	}
+
+	@Override
+	public long getInclusionCount() {
+		return getCount(Phase.INCLUSION);
+	}
+
+	@Override
+	public double getInclusionMillis() {
+		return getMillis(Phase.INCLUSION);
+	}
+
+	@Override
+	public long getTreeWeightCount() {
+		return getCount(Phase.TREE_WEIGHT);
+	}
+
+	@Override
+	public double getTreeWeightMillis() {
+		return getMillis(Phase.TREE_WEIGHT);
+	}
+
+	@Override
+	public long getAccumulationCount() {
+		return getCount(Phase.ACCUMULATION);
+	}
+
+	@Override
+	public double getAccumulationMillis() {
+		return getMillis(Phase.ACCUMULATION);
+	}
+
+	@Override
+	public long getAscertainmentCount() {
+		return getCount(Phase.ASCERTAINMENT);
+	}
+
+	@Override
+	public double getAscertainmentMillis() {
+		return getMillis(Phase.ASCERTAINMENT);
+	}
+
+	@Override
+	public double getTreeWeightHitRate() {
+		return getHitRate(Cache.TREE_WEIGHT);
+	}
+
+	@Override
+	public double getNodePatternInclusionHitRate() {
+		return getHitRate(Cache.NODE_PATTERN_INCLUSION);
+	}
+
+	@Override
+	public double getAverageRateHitRate() {
+		return getHitRate(Cache.AVERAGE_RATE);
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		final String prefix = (getID() == null ? "dollo" : getID()) + ".";
+		for (Phase phase : Phase.values()) {
+			out.print(prefix + phase.label + ".count\t" + prefix + phase.label + ".ms\t");
+		}
+		for (Cache cache : Cache.values()) {
+			out.print(prefix + cache.label + ".hitRate\t");
+		}
+	}
+
+	@Override
+	public void log(int sample, PrintStream out) {
+		for (Phase phase : Phase.values()) {
+			out.print(getCount(phase) + "\t" + getMillis(phase) + "\t");
+		}
+		for (Cache cache : Cache.values()) {
+			out.print(getHitRate(cache) + "\t");
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * ObservationProcessStatisticsMBean.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+/**
+ * JMX view of {@link ObservationProcessStatistics}, for watching long runs
+ * live, e.g. in jconsole. Times are in milliseconds, hit rates are NaN as
+ * long as the cache was not used.
+ */
+public interface ObservationProcessStatisticsMBean {
+	long getPeelingCount();
+
+	double getPeelingMillis();
+
+	long getInclusionCount();
+
+	double getInclusionMillis();
+
+	long getTreeWeightCount();
+
+	double getTreeWeightMillis();
+
+	long getAccumulationCount();
+
+	double getAccumulationMillis();
+
+	long getAscertainmentCount();
+
+	double getAscertainmentMillis();
+
+	double getTreeWeightHitRate();
+
+	double getNodePatternInclusionHitRate();
+
+	double getAverageRateHitRate();
+
+	void reset();
+}
@@ -0,0 +1,129 @@
+/*
+ * PatternAlignment.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import beast.core.Description;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+
+@Description("Alignment that is given by its distinct patterns and their weights instead of by sequences, "
+		+ "for data sets that are too large to hold every site as a character")
+public class PatternAlignment extends Alignment {
+
+	// null unless the subclass packed it
+	protected TipPresence tipPresence;
+
+	protected PatternAlignment() {
+	}
+
+	/**
+	 * @param sitePatterns
+	 *            the codes of each pattern, one per taxon
+	 * @param weights
+	 *            the number of sites with each pattern
+	 */
+	public PatternAlignment(List<String> taxa, DataType dataType, int[][] sitePatterns, int[] weights) {
+		setPatterns(taxa, dataType, sitePatterns, weights);
+	}
+
+	@Override
+	public void initAndValidate() {
+		// the patterns are given to the constructor or set by subclasses
+	}
+
+	/**
+	 * Set the taxa, data type and patterns. The sites are numbered so that
+	 * those of the first pattern come first, then those of the second, and
+	 * so on.
+	 */
+	protected void setPatterns(List<String> taxa, DataType dataType, int[][] sitePatterns, int[] weights) {
+		if (sitePatterns.length != weights.length) {
+			throw new IllegalArgumentException(
+					"Got " + sitePatterns.length + " patterns, but " + weights.length + " weights");
+		}
+		taxaNames.clear();
+		taxaNames.addAll(taxa);
+		stateCounts.clear();
+		for (int i = 0; i < taxa.size(); i++) {
+			stateCounts.add(dataType.getStateCount());
+		}
+		m_dataType = dataType;
+		maxStateCount = dataType.getStateCount();
+		this.sitePatterns = sitePatterns;
+		patternWeight = weights;
+		int siteCount = 0;
+		for (int weight : weights) {
+			siteCount += weight;
+		}
+		patternIndex = new int[siteCount];
+		for (int i = 0, site = 0; i < weights.length; i++) {
+			for (int k = 0; k < weights[i]; k++) {
+				patternIndex[site++] = i;
+			}
+		}
+	}
+
+	/**
+	 * @return in which taxa each pattern is present, if it was packed when
+	 *         the patterns were set, otherwise null
+	 */
+	public TipPresence getTipPresence() {
+		return tipPresence;
+	}
+
+	/**
+	 * @return the data type given as userDataType, which must be a
+	 *         MutationDeathType, or by default the one with presence "1" and
+	 *         absence "0"
+	 */
+	protected MutationDeathType getPresenceDataType() {
+		DataType.Base dataType = userDataTypeInput.get();
+		if (dataType == null) {
+			MutationDeathType presence = new MutationDeathType();
+			presence.initByName("extantCode", "1");
+			return presence;
+		}
+		if (!(dataType instanceof MutationDeathType)) {
+			throw new IllegalArgumentException("The data type of " + getID() + " must be a MutationDeathType");
+		}
+		return (MutationDeathType) dataType;
+	}
+
+	/**
+	 * Mark patterns as excluded by the ascertainment, as the exclude inputs
+	 * of Alignment do. Like there, they should have weight 0, so that they
+	 * enter only the ascertainment correction.
+	 */
+	public void setExcludedPatterns(Collection<Integer> patternIndices) {
+		excludedPatterns = new HashSet<Integer>(patternIndices);
+		isAscertained = !excludedPatterns.isEmpty();
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * SimulatedDolloAlignment.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.parameter.RealParameter;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.sitemodel.SiteModelInterface;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.TreeInterface;
+import beast.util.Randomizer;
+
+@Description("Alignment simulated under the stochastic Dollo process that AnyTipObservationProcess assumes: "
+		+ "traits are gained at rate lam along the tree, evolve under the site model and clock, and are observed "
+		+ "if they are present in at least one tip. Only the distinct patterns are kept.")
+public class SimulatedDolloAlignment extends PatternAlignment {
+	public Input<TreeInterface> treeInput = new Input<TreeInterface>("tree", "tree to simulate the traits on",
+			Validate.REQUIRED);
+	public Input<SiteModelInterface> siteModelInput = new Input<SiteModelInterface>("siteModel",
+			"site model for the evolution of a trait after its gain", Validate.REQUIRED);
+	public Input<BranchRateModel.Base> branchRateModelInput = new Input<BranchRateModel.Base>("branchRateModel",
+			"clock model (default strict clock with rate 1)");
+	public Input<RealParameter> muInput = new Input<RealParameter>("mu",
+			"instantaneous per capita loss rate of the character", Validate.REQUIRED);
+	public Input<RealParameter> lamInput = new Input<RealParameter>("lam", "instantaneous rate of the Poisson process"
+			+ " over the evolutionary tree realizing the gain of characters", new RealParameter(new Double[] { 1.0 }));
+	public Input<Integer> traitCountInput = new Input<Integer>("traitCount",
+			"number of observed traits to simulate (default: drawn from the Poisson process with rate lam)");
+	public Input<Boolean> absentPatternInput = new Input<Boolean>("absentPattern",
+			"add the pattern that is absent in all tips with weight 0, excluded by the ascertainment, so that the "
+					+ "observation process can correct for it from the alignment instead of by conditionOnPresence",
+			false);
+
+	private FlatTree tree;
+	private int tipCount;
+	private int stateCount;
+	private int categoryCount;
+	private int deathState;
+	// whether a dead trait stays dead, so that its subtree can be skipped
+	private boolean deathAbsorbing;
+	// code of the tips for each state
+	private int[] stateCodes;
+	// cumulative distributions to sample from
+	private double[] birthCumulative;
+	private double[] categoryCumulative;
+	private double[] frequencyCumulative;
+	// per node, the rows of the transition matrices of its branch for each
+	// category, as cumulative distributions
+	private double[][] transitionCumulative;
+
+	private int[] stackNode;
+	private int[] stackState;
+	// (tip << 32 | code) for the tips a trait is present in
+	private long[] tipEntries;
+
+	private final Map<PatternKey, Integer> patternIndices = new HashMap<PatternKey, Integer>();
+	private final List<int[]> simulatedPatterns = new ArrayList<int[]>();
+	private int[] simulatedWeights = new int[16];
+
+	@Override
+	public void initAndValidate() {
+		final MutationDeathType dataType = getPresenceDataType();
+		final TreeInterface treeModel = treeInput.get();
+		final SiteModel.Base siteModel = (SiteModel.Base) siteModelInput.get();
+		final BranchRateModel branchRateModel = (branchRateModelInput.get() == null ? new StrictClockModel()
+				: branchRateModelInput.get());
+		setUp(treeModel, siteModel, branchRateModel, dataType);
+
+		final double mu = muInput.get().getValue(0);
+		final double lam = lamInput.get().getValue(0);
+		double averageRate = 0.0;
+		final double[] proportions = siteModel.getCategoryProportions(null);
+		for (int c = 0; c < categoryCount; ++c) {
+			averageRate += proportions[c] * siteModel.getRateForCategory(c, null);
+		}
+		setBirthWeights(mu * averageRate);
+
+		patternIndices.clear();
+		simulatedPatterns.clear();
+		final Integer traitCount = traitCountInput.get();
+		if (traitCount != null) {
+			// the observed traits are gained at the nodes in proportion to
+			// the birth weights, like all traits are
+			final long maxGains = 1000L * traitCount + 1000L;
+			long gains = 0;
+			for (int observed = 0; observed < traitCount; ++gains) {
+				if (gains == maxGains) {
+					throw new IllegalArgumentException("Only " + observed + " of " + maxGains
+							+ " simulated traits were present in any tip of " + treeModel.getID());
+				}
+				if (addTrait(simulateTrait(sampleBirthNode()))) {
+					++observed;
+				}
+			}
+		} else {
+			// the number of gains is Poisson distributed, so the gains are
+			// the points of a rate 1 process up to its expected value
+			final double expectedGains = lam * birthCumulative[birthCumulative.length - 1] / (mu * averageRate);
+			for (double t = nextExponential(); t < expectedGains; t += nextExponential()) {
+				addTrait(simulateTrait(sampleBirthNode()));
+			}
+		}
+
+		List<String> taxa = new ArrayList<String>(tipCount);
+		for (int i = 0; i < tipCount; ++i) {
+			taxa.add(treeModel.getNode(i).getID());
+		}
+		int patternCount = simulatedPatterns.size();
+		if (absentPatternInput.get()) {
+			int[] absent = new int[tipCount];
+			Arrays.fill(absent, stateCodes[deathState]);
+			addPattern(absent, 0);
+		}
+		setPatterns(taxa, dataType, simulatedPatterns.toArray(new int[simulatedPatterns.size()][]),
+				Arrays.copyOf(simulatedWeights, simulatedPatterns.size()));
+		if (absentPatternInput.get()) {
+			setExcludedPatterns(Collections.singleton(patternCount));
+		}
+
+		// only needed while simulating
+		patternIndices.clear();
+		simulatedPatterns.clear();
+		transitionCumulative = null;
+	}
+
+	private void setUp(TreeInterface treeModel, SiteModel.Base siteModel, BranchRateModel branchRateModel,
+			MutationDeathType dataType) {
+		final int nodeCount = treeModel.getNodeCount();
+		tipCount = treeModel.getLeafNodeCount();
+		tree = new FlatTree(nodeCount);
+		tree.setTopology(treeModel);
+		tree.setBranches(treeModel, branchRateModel);
+
+		stateCount = dataType.getStateCount();
+		deathState = dataType.DEATHSTATE;
+		stateCodes = new int[stateCount];
+		Arrays.fill(stateCodes, -1);
+		for (int code = dataType.getCodeMap().length() - 1; code >= 0; --code) {
+			final int[] states = dataType.getStatesForCode(code);
+			if (states.length == 1) {
+				stateCodes[states[0]] = code;
+			}
+		}
+		for (int state = 0; state < stateCount; ++state) {
+			if (stateCodes[state] < 0) {
+				throw new IllegalArgumentException("Data type " + dataType.getID() + " has no code for state " + state);
+			}
+		}
+
+		categoryCount = siteModel.getCategoryCount();
+		categoryCumulative = cumulative(siteModel.getCategoryProportions(null), 0, categoryCount);
+		final SubstitutionModel substitutionModel = siteModel.substModelInput.get();
+		frequencyCumulative = cumulative(substitutionModel.getFrequencies(), 0, stateCount);
+
+		transitionCumulative = new double[nodeCount][];
+		final double[] matrix = new double[stateCount * stateCount];
+		deathAbsorbing = true;
+		for (int i = 0; i < nodeCount; ++i) {
+			final int parent = tree.getParent(i);
+			if (parent < 0) {
+				continue;
+			}
+			final Node node = treeModel.getNode(i);
+			final double parentHeight = treeModel.getNode(parent).getHeight();
+			final double[] rows = new double[categoryCount * stateCount * stateCount];
+			for (int c = 0; c < categoryCount; ++c) {
+				final double jointBranchRate = siteModel.getRateForCategory(c, node) * tree.getBranchRate(i);
+				substitutionModel.getTransitionProbabilities(node, parentHeight, node.getHeight(), jointBranchRate,
+						matrix);
+				deathAbsorbing &= matrix[deathState * stateCount + deathState] == 1.0;
+				for (int from = 0; from < stateCount; ++from) {
+					System.arraycopy(cumulative(matrix, from * stateCount, stateCount), 0, rows,
+							(c * stateCount + from) * stateCount, stateCount);
+				}
+			}
+			transitionCumulative[i] = rows;
+		}
+
+		stackNode = new int[nodeCount];
+		stackState = new int[nodeCount];
+		tipEntries = new long[tipCount];
+	}
+
+	/**
+	 * The expected number of traits that are gained on the branch above a
+	 * node and are still alive at the node is lam / deathRate times the
+	 * probability that a trait is lost along the branch, and lam / deathRate
+	 * for the root, as in the tree weight of the observation process.
+	 */
+	private void setBirthWeights(double deathRate) {
+		final int nodeCount = tree.getNodeCount();
+		birthCumulative = new double[nodeCount];
+		double total = 0.0;
+		for (int i = 0; i < nodeCount; ++i) {
+			if (tree.getParent(i) < 0) {
+				total += 1.0;
+			} else {
+				total += 1.0 - Math.exp(-deathRate * tree.getBranchRate(i) * tree.getBranchLength(i));
+			}
+			birthCumulative[i] = total;
+		}
+	}
+
+	private static double[] cumulative(double[] probabilities, int offset, int length) {
+		double[] cumulative = new double[length];
+		double sum = 0.0;
+		for (int k = 0; k < length; ++k) {
+			sum += probabilities[offset + k];
+			cumulative[k] = sum;
+		}
+		return cumulative;
+	}
+
+	/**
+	 * @return k with probability cumulative[offset + k] - cumulative[offset
+	 *         + k - 1]; the last value is taken if rounding leaves a gap
+	 */
+	private static int sample(double[] cumulative, int offset, int length) {
+		final double u = Randomizer.nextDouble() * cumulative[offset + length - 1];
+		int k = 0;
+		while (k < length - 1 && u >= cumulative[offset + k]) {
+			++k;
+		}
+		return k;
+	}
+
+	private int sampleBirthNode() {
+		final double u = Randomizer.nextDouble() * birthCumulative[birthCumulative.length - 1];
+		int k = Arrays.binarySearch(birthCumulative, u);
+		k = (k < 0 ? -k - 1 : k + 1);
+		return Math.min(k, birthCumulative.length - 1);
+	}
+
+	private static double nextExponential() {
+		return -Math.log(1.0 - Randomizer.nextDouble());
+	}
+
+	/**
+	 * Simulate a trait from its gain at a node down to the tips, with one
+	 * rate category for all branches.
+	 *
+	 * @return the number of tips the trait is present in, which are in the
+	 *         first entries of tipEntries
+	 */
+	private int simulateTrait(int node) {
+		final int category = sample(categoryCumulative, 0, categoryCount);
+		int entries = 0;
+		int top = 0;
+		stackNode[top] = node;
+		stackState[top] = sample(frequencyCumulative, 0, stateCount);
+		++top;
+		while (top > 0) {
+			--top;
+			final int i = stackNode[top];
+			final int state = stackState[top];
+			final int childCount = tree.getChildCount(i);
+			if (childCount == 0) {
+				if (state != deathState) {
+					tipEntries[entries++] = ((long) i << 32) | stateCodes[state];
+				}
+			} else if (state != deathState || !deathAbsorbing) {
+				for (int k = 0; k < childCount; ++k) {
+					final int child = tree.getChild(i, k);
+					stackNode[top] = child;
+					stackState[top] = sample(transitionCumulative[child], (category * stateCount + state) * stateCount,
+							stateCount);
+					++top;
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Count the pattern of the simulated trait, unless it is absent in all
+	 * tips and so not observed.
+	 *
+	 * @return whether the trait was observed
+	 */
+	private boolean addTrait(int entries) {
+		if (entries == 0) {
+			return false;
+		}
+		Arrays.sort(tipEntries, 0, entries);
+		PatternKey key = new PatternKey(Arrays.copyOf(tipEntries, entries));
+		Integer patternIndex = patternIndices.get(key);
+		if (patternIndex == null) {
+			int[] pattern = new int[tipCount];
+			Arrays.fill(pattern, stateCodes[deathState]);
+			for (int k = 0; k < entries; ++k) {
+				pattern[(int) (tipEntries[k] >>> 32)] = (int) tipEntries[k];
+			}
+			patternIndices.put(key, simulatedPatterns.size());
+			addPattern(pattern, 1);
+		} else {
+			++simulatedWeights[patternIndex];
+		}
+		return true;
+	}
+
+	private void addPattern(int[] pattern, int weight) {
+		if (simulatedPatterns.size() == simulatedWeights.length) {
+			simulatedWeights = Arrays.copyOf(simulatedWeights, 2 * simulatedWeights.length);
+		}
+		simulatedWeights[simulatedPatterns.size()] = weight;
+		simulatedPatterns.add(pattern);
+	}
+
+	/**
+	 * The tips a trait is present in with their codes, as a hash key.
+	 */
+	private static class PatternKey {
+		private final long[] entries;
+		private final int hash;
+
+		PatternKey(long[] entries) {
+			this.entries = entries;
+			this.hash = Arrays.hashCode(entries);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof PatternKey && Arrays.equals(entries, ((PatternKey) other).entries);
+		}
+	}
+}
@@ -27,6 +27,8 @@
 
 package babylonia.dollo;
 
+import java.util.Arrays;
+
 import beast.core.Description;
 import beast.core.Input;
 import beast.evolution.alignment.Taxon;
@@ -40,13 +42,184 @@ public class SingleTipObservationProcess extends AnyTipObservationProcess {
 
 	@Override
 	public void initAndValidate() {
+		if (conditionOnPresenceInput.get()) {
+			// the analytic correction is for traits present in any tip;
+			// the excluded patterns here are conditioned on the source tip
+			throw new IllegalArgumentException(
+					"conditionOnPresence is not supported by " + getClass().getSimpleName() + " " + getID()
+							+ "; exclude the patterns absent in " + theTip.get().getID() + " from the data instead");
+		}
 		super.initAndValidate();
 		this.sourceTaxon = theTip.get();
-		// FIXME: Assert that the characters are indeed present in the tip.
 	}
 
 	@Override
-	public double calculateLogTreeWeight() {
-		return -lam.getValue(0) / (getAverageRate() * mu.getValue(0));
+	public double calculateLogTreeWeightPerGainRate() {
+		return -1.0 / (getAverageRate() * mu.getValue(0));
+	}
+
+	/**
+	 * Every trait is present in the source tip, so the MRCA of the tips it
+	 * is present in lies on the path from the source tip to the root. The
+	 * inclusion is therefore kept as that MRCA only, and found by attaching
+	 * every tip to the first node of this path above it; no node x pattern
+	 * matrices are needed. The few excluded patterns that are absent in the
+	 * source keep the MRCA of the tips they are present in, as for
+	 * {@link AnyTipObservationProcess}.
+	 */
+	@Override
+	public void setNodePatternInclusion() {
+		if (patternMrca == null) {
+			initSourcePath();
+		} else if (!topologyChanged()) {
+			nodePatternInclusionKnown = true;
+			return;
+		}
+
+		final FlatTree tree = getFlatTree();
+		Arrays.fill(pathPosition, -1);
+		int pathLength = 0;
+		for (int k = sourceNode; k >= 0; k = tree.getParent(k)) {
+			pathPosition[k] = pathLength;
+			pathNode[pathLength++] = k;
+		}
+		final int[] postOrder = tree.getPostOrder();
+		for (int k = nodeCount - 1; k >= 0; --k) {
+			// parents before children
+			final int i = postOrder[k];
+			anchor[i] = (pathPosition[i] >= 0 ? i : anchor[tree.getParent(i)]);
+		}
+
+		Arrays.fill(mrcaPosition, 0);
+		for (int taxon = 0; taxon < presence.getTaxonCount(); taxon++) {
+			final int position = pathPosition[anchor[tipOfTaxon[taxon]]];
+			if (position == 0) {
+				continue;
+			}
+			for (int w = 0; w < presence.getWordsPerTaxon(); w++) {
+				long word = presence.getWord(taxon, w);
+				while (word != 0) {
+					final int patternIndex = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					if (position > mrcaPosition[patternIndex]) {
+						mrcaPosition[patternIndex] = position;
+					}
+				}
+			}
+		}
+		for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+			patternMrca[patternIndex] = (allAbsent[patternIndex] ? -1 : pathNode[mrcaPosition[patternIndex]]);
+		}
+		for (int patternIndex : offSourcePatterns) {
+			patternMrca[patternIndex] = findMrca(tree, patternIndex);
+		}
+
+		nodePatternInclusionKnown = true;
+	}
+
+	/**
+	 * @return the MRCA of the tips the pattern is present in, as the first
+	 *         node in post-order with all of them below it
+	 */
+	private int findMrca(FlatTree tree, int patternIndex) {
+		final int presentCount = presence.getPresentCount(patternIndex);
+		Arrays.fill(presentBelow, 0);
+		for (int taxon = 0; taxon < presence.getTaxonCount(); taxon++) {
+			if (presence.isPresent(taxon, patternIndex)) {
+				presentBelow[tipOfTaxon[taxon]] = 1;
+			}
+		}
+		for (int i : tree.getPostOrder()) {
+			for (int c = 0; c < tree.getChildCount(i); c++) {
+				presentBelow[i] += presentBelow[tree.getChild(i, c)];
+			}
+			if (presentBelow[i] == presentCount) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("Pattern " + patternIndex + " has no MRCA");
 	}
+
+	private void initSourcePath() {
+		final Taxon taxon = theTip.get();
+		presence = TipPresence.fromAlignment(patterns, deathState);
+		final int sourceTaxonIndex = patterns.getTaxonIndex(taxon.getID());
+
+		tipOfTaxon = new int[presence.getTaxonCount()];
+		Arrays.fill(tipOfTaxon, -1);
+		sourceNode = -1;
+		for (int i = 0; i < treeModel.getLeafNodeCount(); i++) {
+			final String id = treeModel.getNode(i).getID();
+			final int taxonIndex = patterns.getTaxonIndex(id);
+			if (taxonIndex < 0) {
+				throw new IllegalArgumentException("Tip " + id + " of the tree is not a taxon of the data");
+			}
+			tipOfTaxon[taxonIndex] = i;
+			if (id.equals(taxon.getID())) {
+				sourceNode = i;
+			}
+		}
+		for (int taxonIndex = 0; taxonIndex < tipOfTaxon.length; taxonIndex++) {
+			if (tipOfTaxon[taxonIndex] < 0) {
+				throw new IllegalArgumentException(
+						"Taxon " + patterns.getTaxaNames().get(taxonIndex) + " of the data is not a tip of the tree");
+			}
+		}
+		if (sourceNode < 0 || sourceTaxonIndex < 0) {
+			throw new IllegalArgumentException("Taxon " + taxon.getID() + " is not a tip of the tree and the data");
+		}
+
+		boolean[] excluded = new boolean[patternCount];
+		for (int patternIndex : excludedPatterns) {
+			excluded[patternIndex] = true;
+		}
+		allAbsent = new boolean[patternCount];
+		int offSourceCount = 0;
+		offSourcePatterns = new int[patternCount];
+		for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+			if (excluded[patternIndex]) {
+				// only the pattern absent everywhere may arise at any node
+				allAbsent[patternIndex] = (presence.getPresentCount(patternIndex) == 0);
+				if (!allAbsent[patternIndex] && !presence.isPresent(sourceTaxonIndex, patternIndex)) {
+					offSourcePatterns[offSourceCount++] = patternIndex;
+				}
+			} else if (!presence.isPresent(sourceTaxonIndex, patternIndex)) {
+				throw new IllegalArgumentException("Pattern " + patternIndex + " is not present in taxon "
+						+ taxon.getID() + ", but all traits must be present in it");
+			}
+		}
+
+		patternMrca = new int[patternCount];
+		storedPatternMrca = new int[patternCount];
+		mrcaPosition = new int[patternCount];
+		pathPosition = new int[nodeCount];
+		pathNode = new int[nodeCount];
+		anchor = new int[nodeCount];
+		offSourcePatterns = Arrays.copyOf(offSourcePatterns, offSourceCount);
+		presentBelow = new int[nodeCount];
+	}
+
+	private boolean topologyChanged() {
+		return filthyNodeCount > 0;
+	}
+
+	private TipPresence presence;
+	// the tip node of each taxon of the alignment
+	private int[] tipOfTaxon;
+	private int sourceNode;
+	// the excluded pattern that is absent in all tips, which has no MRCA
+	private boolean[] allAbsent;
+	// position of each node on the path from the source tip to the root, or
+	// -1, and the nodes on that path
+	private int[] pathPosition;
+	private int[] pathNode;
+	// the first node on the path at or above each node
+	private int[] anchor;
+	// position of the MRCA of each pattern on the path
+	private int[] mrcaPosition;
+	// the excluded patterns present in some tips, but not in the source,
+	// whose MRCA need not lie on the path
+	private int[] offSourcePatterns;
+	// number of tips below each node a pattern is present in
+	private int[] presentBelow;
 }
@@ -0,0 +1,147 @@
+/*
+ * TipPresence.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+
+/**
+ * A taxonCount x patternCount bit matrix recording in which taxa each
+ * pattern is present, stored as one row of 64-bit words per taxon, together
+ * with the number of taxa each pattern is present in.
+ */
+public class TipPresence {
+	private final int taxonCount;
+	private final int patternCount;
+	private final int wordsPerTaxon;
+
+	private final long[] bits;
+	private final int[] presentCount;
+
+	public TipPresence(int taxonCount, int patternCount) {
+		this.taxonCount = taxonCount;
+		this.patternCount = patternCount;
+		this.wordsPerTaxon = (patternCount + 63) >>> 6;
+		bits = new long[taxonCount * wordsPerTaxon];
+		presentCount = new int[patternCount];
+	}
+
+	/**
+	 * Read the presence of all patterns of an alignment. A cell counts as
+	 * present unless the states of its code include the death state; each
+	 * distinct code is looked up in the data type only once. If the
+	 * alignment was loaded with its presence already packed, that is used.
+	 */
+	public static TipPresence fromAlignment(Alignment patterns, int deathState) {
+		if (patterns instanceof PatternAlignment && ((PatternAlignment) patterns).getTipPresence() != null
+				&& patterns.getDataType() instanceof MutationDeathType
+				&& ((MutationDeathType) patterns.getDataType()).DEATHSTATE == deathState) {
+			return ((PatternAlignment) patterns).getTipPresence();
+		}
+		final int taxonCount = patterns.getTaxonCount();
+		final int patternCount = patterns.getPatternCount();
+		final DataType dataType = patterns.getDataType();
+		boolean[] deathCodes = null;
+		if (dataType instanceof MutationDeathType) {
+			deathCodes = ((MutationDeathType) dataType).getDeathCodes();
+		}
+		// 0: not looked up yet, 1: present, 2: absent
+		byte[] codePresence = new byte[0];
+
+		TipPresence presence = new TipPresence(taxonCount, patternCount);
+		for (int taxon = 0; taxon < taxonCount; taxon++) {
+			for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
+				final int code = patterns.getPattern(taxon, patternIndex);
+				boolean present;
+				if (deathCodes != null && code < deathCodes.length) {
+					present = !deathCodes[code];
+				} else {
+					if (code >= codePresence.length) {
+						byte[] grown = new byte[Math.max(code + 1, 2 * codePresence.length)];
+						System.arraycopy(codePresence, 0, grown, 0, codePresence.length);
+						codePresence = grown;
+					}
+					if (codePresence[code] == 0) {
+						codePresence[code] = 1;
+						for (int state : dataType.getStatesForCode(code)) {
+							if (state == deathState) {
+								codePresence[code] = 2;
+							}
+						}
+					}
+					present = codePresence[code] == 1;
+				}
+				if (present) {
+					presence.set(taxon, patternIndex);
+				}
+			}
+		}
+		return presence;
+	}
+
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	public int getWordsPerTaxon() {
+		return wordsPerTaxon;
+	}
+
+	public boolean isPresent(int taxon, int pattern) {
+		return (bits[taxon * wordsPerTaxon + (pattern >>> 6)] & (1L << pattern)) != 0;
+	}
+
+	/**
+	 * @return word w of the row of taxon; bit b of it is pattern 64*w+b
+	 */
+	public long getWord(int taxon, int w) {
+		return bits[taxon * wordsPerTaxon + w];
+	}
+
+	/**
+	 * @return the number of taxa the pattern is present in
+	 */
+	public int getPresentCount(int pattern) {
+		return presentCount[pattern];
+	}
+
+	/**
+	 * Mark the pattern as present in the taxon.
+	 */
+	public void set(int taxon, int pattern) {
+		final int index = taxon * wordsPerTaxon + (pattern >>> 6);
+		final long mask = 1L << pattern;
+		if ((bits[index] & mask) == 0) {
+			bits[index] |= mask;
+			presentCount[pattern]++;
+		}
+	}
+}
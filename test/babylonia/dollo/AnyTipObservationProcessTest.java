@@ -0,0 +1,359 @@
+/*
+ * AnyTipObservationProcessTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import beast.core.BEASTInterface;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.MutationDeathModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+/**
+ * Tests of the AnyTip observation process on trees larger than the two tips
+ * of {@link DolloModelTest}.
+ */
+public class AnyTipObservationProcessTest {
+
+	/**
+	 * @return a balanced tree of 2^depth tips t0, t1, ... with all branches of
+	 *         length 1
+	 */
+	private static String balancedTree(int depth, int[] tips) {
+		if (depth == 0) {
+			return "t" + tips[0]++ + ":1";
+		}
+		return "(" + balancedTree(depth - 1, tips) + "," + balancedTree(depth - 1, tips) + "):1";
+	}
+
+	/**
+	 * @return an alignment with the taxa of tree and one pattern, present
+	 *         in all of them
+	 */
+	private static Alignment allPresent(Tree tree) {
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		for (Node tip : tree.getExternalNodes()) {
+			sequences.add(new Sequence(tip.getID(), "1"));
+		}
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		Alignment alignment = new Alignment();
+		alignment.initByName("sequence", sequences, "userDataType", dataType);
+		return alignment;
+	}
+
+	private static SiteModel siteModel(double deathRate) {
+		Frequencies freq = new Frequencies();
+		freq.initByName("frequencies", new RealParameter(new Double[] { 0.4, 0.6 }));
+		MutationDeathModel subst = new MutationDeathModel();
+		subst.initByName("frequencies", freq, "deathprob", new RealParameter(new Double[] { deathRate }));
+		SiteModel sites = new SiteModel();
+		sites.initByName("substModel", subst);
+		return sites;
+	}
+
+	private static AnyTipObservationProcess process(Tree tree, Alignment data, SiteModel sites, Object... extraInputs) {
+		AnyTipObservationProcess process = new AnyTipObservationProcess();
+		List<Object> inputs = new ArrayList<Object>(Arrays.asList("tree", tree, "data", data, "siteModel", sites,
+				"branchRateModel", new StrictClockModel(), "mu", new RealParameter(new Double[] { 0.5 }), "lam",
+				new RealParameter(new Double[] { 2.0 }), "integrateGainRate", false));
+		inputs.addAll(Arrays.asList(extraInputs));
+		process.initByName(inputs.toArray());
+		return process;
+	}
+
+	/**
+	 * @return the log partials of node for a pattern of data, peeled in log
+	 *         space so that they do not underflow
+	 */
+	private static double[] logPartials(Node node, SubstitutionModel substModel, Alignment data, int pattern) {
+		final int stateCount = 2;
+		double[] logPartials = new double[stateCount];
+		if (node.isLeaf()) {
+			final int code = data.getPattern(data.getTaxonIndex(node.getID()), pattern);
+			Arrays.fill(logPartials, Double.NEGATIVE_INFINITY);
+			for (int state : data.getDataType().getStatesForCode(code)) {
+				logPartials[state] = 0.0;
+			}
+			return logPartials;
+		}
+		double[] matrix = new double[stateCount * stateCount];
+		for (Node child : node.getChildren()) {
+			double[] childLogPartials = logPartials(child, substModel, data, pattern);
+			substModel.getTransitionProbabilities(child, node.getHeight(), child.getHeight(), 1.0, matrix);
+			for (int s = 0; s < stateCount; ++s) {
+				double[] terms = new double[stateCount];
+				for (int t = 0; t < stateCount; ++t) {
+					terms[t] = Math.log(matrix[s * stateCount + t]) + childLogPartials[t];
+				}
+				logPartials[s] += logSumExp(terms);
+			}
+		}
+		return logPartials;
+	}
+
+	private static double logSumExp(double[] terms) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double term : terms) {
+			max = Math.max(max, term);
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		double sum = 0.0;
+		for (double term : terms) {
+			sum += Math.exp(term - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	@Test
+	public void testScaledDeepTree() {
+		// 256 tips, each losing the pattern with probability 1 - e^-3 on its
+		// own branch: the partials of the root are far below Double.MIN_VALUE
+		Tree tree = new TreeParser(balancedTree(8, new int[1]) + ";");
+		Alignment data = allPresent(tree);
+		SiteModel sites = siteModel(3.0);
+
+		AnyTipObservationProcess unscaled = process(tree, data, sites, "scaling", "none");
+		assertFalse(unscaled.isUsingScaling());
+		assertEquals(Double.NEGATIVE_INFINITY, unscaled.calculateLogP(), 0.0);
+
+		AnyTipObservationProcess scaled = process(tree, data, sites, "scaledAccumulation", true);
+		assertTrue(scaled.isUsingScaling());
+		final double logP = scaled.calculateLogP();
+
+		// The pattern is present in all tips, so it is only included at the
+		// root, where the survival probability is 1.
+		SubstitutionModel substModel = sites.substModelInput.get();
+		final double[] frequencies = substModel.getFrequencies();
+		final double[] rootLogPartials = logPartials(tree.getRoot(), substModel, data, 0);
+		final double logCumLike = logSumExp(new double[] { Math.log(frequencies[0]) + rootLogPartials[0],
+				Math.log(frequencies[1]) + rootLogPartials[1] });
+		assertTrue(logCumLike < Math.log(Double.MIN_VALUE));
+		// one pattern: log Gamma(2) = 0
+		final double expected = logCumLike + scaled.calculateLogTreeWeight() + Math.log(2.0 / 0.5);
+		assertEquals(expected, logP, 1e-9 * Math.abs(expected));
+	}
+
+	private static void assertInclusionMatches(AnyTipObservationProcess expected, AnyTipObservationProcess actual) {
+		assertArrayEquals(expected.patternMrca, actual.patternMrca);
+		for (int i = 0; i < expected.nodeCount; ++i) {
+			for (int j = 0; j < expected.patternCount; ++j) {
+				assertEquals(expected.nodePatternInclusion.get(i, j), actual.nodePatternInclusion.get(i, j));
+			}
+		}
+		assertEquals(expected.calculateLogP(), actual.calculateLogP(), 1e-12);
+	}
+
+	@Test
+	public void testNarrowExchangeInclusion() {
+		ObservationProcessHarness harness = new ObservationProcessHarness();
+		AnyTipObservationProcess before = harness.freshProcess();
+		final double logPBefore = harness.process.calculateLogP();
+
+		// moves (t3,t4) next to (t0,t1), which becomes the MRCA of the first
+		// pattern
+		final double logP = harness.propose(() -> harness.narrowExchange(harness.node("t2")));
+		AnyTipObservationProcess after = harness.freshProcess();
+		assertFalse(Arrays.equals(before.patternMrca, after.patternMrca));
+		assertInclusionMatches(after, harness.process);
+		assertEquals(after.calculateLogP(), logP, 1e-12);
+
+		harness.reject();
+		assertInclusionMatches(before, harness.process);
+		assertEquals(logPBefore, harness.process.calculateLogP(), 0.0);
+	}
+
+	@Test
+	public void testLamOnlyMove() {
+		ObservationProcessStatistics statistics = new ObservationProcessStatistics();
+		statistics.initByName("jmx", false);
+		ObservationProcessHarness harness = new ObservationProcessHarness("statistics", statistics);
+		final double logPBefore = harness.process.calculateLogP();
+		final long accumulations = statistics.getAccumulationCount();
+		final long treeWeights = statistics.getTreeWeightCount();
+
+		final double logP = harness.propose(() -> ObservationProcessHarness.scale(harness.lam, 1.5));
+		// neither the patterns nor the tree weight are recalculated
+		assertEquals(accumulations, statistics.getAccumulationCount());
+		assertEquals(treeWeights, statistics.getTreeWeightCount());
+		assertEquals(harness.freshProcess().calculateLogP(), logP, 1e-12);
+
+		harness.reject();
+		assertEquals(logPBefore, harness.process.calculateLogP(), 0.0);
+	}
+
+	@Test
+	public void testMuOnlyMove() {
+		ObservationProcessStatistics statistics = new ObservationProcessStatistics();
+		statistics.initByName("jmx", false);
+		ObservationProcessHarness harness = new ObservationProcessHarness("statistics", statistics);
+		final double logPBefore = harness.process.calculateLogP();
+		final long peelings = statistics.getPeelingCount();
+
+		final double logP = harness.propose(() -> ObservationProcessHarness.scale(harness.mu, 1.5));
+		// the partials do not depend on mu
+		assertEquals(peelings, statistics.getPeelingCount());
+		assertEquals(harness.freshProcess().calculateLogP(), logP, 1e-12);
+
+		harness.reject();
+		assertEquals(logPBefore, harness.process.calculateLogP(), 0.0);
+	}
+
+	private static void assertTreeWeightMatches(AnyTipObservationProcess expected, AnyTipObservationProcess actual) {
+		final double logTreeWeight = expected.calculateLogTreeWeight();
+		assertEquals(logTreeWeight, actual.getLogTreeWeight(), 1e-12);
+		assertEquals(logTreeWeight, actual.calculateLogTreeWeight(), 1e-12);
+		assertArrayEquals(expected.u0, actual.u0, 1e-12);
+		assertArrayEquals(expected.p, actual.p, 1e-12);
+	}
+
+	@Test
+	public void testIncrementalTreeWeight() {
+		ObservationProcessHarness harness = new ObservationProcessHarness();
+		List<Runnable> moves = Arrays.asList(() -> harness.setHeight(harness.node("t0", "t1"), 1.25),
+				() -> harness.narrowExchange(harness.node("t2")),
+				() -> ObservationProcessHarness.scale(harness.clockRate, 0.8),
+				() -> ObservationProcessHarness.scale(harness.mu, 1.5),
+				() -> harness.setHeight(harness.node("t3", "t4"), 0.25));
+		for (Runnable move : moves) {
+			AnyTipObservationProcess before = harness.freshProcess();
+			harness.propose(move);
+			assertTreeWeightMatches(harness.freshProcess(), harness.process);
+			harness.reject();
+			assertTreeWeightMatches(before, harness.process);
+
+			harness.propose(move);
+			harness.accept();
+			assertTreeWeightMatches(harness.freshProcess(), harness.process);
+		}
+	}
+
+	@Test
+	public void testGammaCategories() {
+		final int categoryCount = 4;
+		ObservationProcessHarness harness = new ObservationProcessHarness(
+				ObservationProcessHarness.siteModel(categoryCount));
+		AnyTipObservationProcess process = harness.process;
+		assertFalse(process.isUsingScaling());
+		process.calculateLogP();
+
+		final int patternCount = harness.data.getPatternCount();
+		final int stateCount = 2;
+		final double[] frequencies = harness.siteModel.substModelInput.get().getFrequencies();
+		final double[] proportions = harness.siteModel.getCategoryProportions(null);
+		final double[] survival = process.getNodeSurvivalProbabilities();
+		assertEquals(categoryCount, proportions.length);
+		for (int j = 0; j < patternCount; ++j) {
+			double expected = 0.0;
+			for (int i = 0; i < harness.tree.getNodeCount(); ++i) {
+				if (!process.nodePatternInclusion.get(i, j)) {
+					continue;
+				}
+				final double[] partials = process.getNodePartialsView(i);
+				double siteLikelihood = 0.0;
+				for (int c = 0; c < categoryCount; ++c) {
+					for (int s = 0; s < stateCount; ++s) {
+						siteLikelihood += proportions[c] * frequencies[s]
+								* partials[c * patternCount * stateCount + j * stateCount + s];
+					}
+				}
+				expected += survival[i] * siteLikelihood;
+			}
+			assertEquals(expected, process.cumLike[j], 1e-12 * expected);
+		}
+	}
+
+	@Test
+	public void testNoUnusedBeagleOutputs() {
+		Tree tree = new TreeParser("((t0:1,t1:1):1,t2:2);");
+		Alignment data = allPresent(tree);
+		process(tree, data, siteModel(0.5));
+		// without BEAGLE, the DolloBeagleTreeLikelihood that was tried must
+		// not be left behind
+		for (Object owner : new Object[] { tree, data }) {
+			for (BEASTInterface output : ((BEASTInterface) owner).getOutputs()) {
+				if (output instanceof DolloBeagleTreeLikelihood) {
+					assertTrue(((DolloBeagleTreeLikelihood) output).hasBeagleInstance());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBeagleNodePartials() {
+		Tree tree = new TreeParser("((t0:1,t1:0.5):0.5,(t2:0.25,t3:1.25):0.25);");
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		String[] rows = { "1101", "1011", "0?11", "1001" };
+		for (int i = 0; i < rows.length; ++i) {
+			sequences.add(new Sequence("t" + i, rows[i]));
+		}
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		Alignment data = new Alignment();
+		data.initByName("sequence", sequences, "userDataType", dataType);
+		SiteModel sites = siteModel(0.5);
+
+		DolloBeagleTreeLikelihood beagle = new DolloBeagleTreeLikelihood();
+		beagle.initByName("data", data, "tree", tree, "siteModel", sites, "useAmbiguities", true, "scaling", "none");
+		Assume.assumeTrue("BEAGLE is not available", beagle.hasBeagleInstance());
+		beagle.calculateLogP();
+
+		SubstitutionModel substModel = sites.substModelInput.get();
+		final double[] frequencies = substModel.getFrequencies();
+		double[] partials = new double[data.getPatternCount() * 2];
+		for (Node node : tree.getNodesAsArray()) {
+			beagle.getNodePartials(node.getNr(), partials);
+			for (int j = 0; j < data.getPatternCount(); ++j) {
+				final double[] logPartials = logPartials(node, substModel, data, j);
+				final double expected = logSumExp(new double[] { Math.log(frequencies[0]) + logPartials[0],
+						Math.log(frequencies[1]) + logPartials[1] });
+				assertEquals(expected,
+						Math.log(frequencies[0] * partials[2 * j] + frequencies[1] * partials[2 * j + 1]), 1e-10);
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * CognateMatrixAlignmentTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CognateMatrixAlignmentTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// cognate sets in the columns; 1 present, 0 absent, ? missing
+	private static final String[] TAXA = { "A", "B", "C" };
+	private static final String[] ROWS = { "10011?", "111100", "001010" };
+
+	private File writeCsv() throws IOException {
+		File file = folder.newFile("matrix.csv");
+		PrintWriter writer = new PrintWriter(file);
+		writer.print("taxon,a,b,c,d,e,f\r\n");
+		for (int taxon = 0; taxon < TAXA.length; ++taxon) {
+			writer.print(TAXA[taxon]);
+			for (char cell : ROWS[taxon].toCharArray()) {
+				writer.print(", " + cell);
+			}
+			writer.print("\r\n");
+		}
+		writer.close();
+		return file;
+	}
+
+	private File writeBinary() throws IOException {
+		File file = folder.newFile("matrix.bin");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeBytes("COGM");
+		out.writeInt(TAXA.length);
+		out.writeInt(ROWS[0].length());
+		for (String taxon : TAXA) {
+			out.writeShort(taxon.length());
+			out.writeBytes(taxon);
+		}
+		for (int cognateSet = 0; cognateSet < ROWS[0].length(); ++cognateSet) {
+			int present = 0;
+			int missing = 0;
+			for (int taxon = 0; taxon < TAXA.length; ++taxon) {
+				present |= (ROWS[taxon].charAt(cognateSet) == '1' ? 1 : 0) << taxon;
+				missing |= (ROWS[taxon].charAt(cognateSet) == '?' ? 1 : 0) << taxon;
+			}
+			out.writeByte(present);
+			out.writeByte(missing);
+		}
+		out.close();
+		return file;
+	}
+
+	private static CognateMatrixAlignment load(File file, Object... extraInputs) {
+		return load(new CognateMatrixAlignment(), file, extraInputs);
+	}
+
+	private static CognateMatrixAlignment load(CognateMatrixAlignment alignment, File file, Object... extraInputs) {
+		Object[] inputs = Arrays.copyOf(new Object[] { "file", file.getPath() }, 2 + extraInputs.length);
+		System.arraycopy(extraInputs, 0, inputs, 2, extraInputs.length);
+		alignment.initByName(inputs);
+		return alignment;
+	}
+
+	private static void assertMatrix(CognateMatrixAlignment alignment) {
+		assertEquals(Arrays.asList(TAXA), alignment.getTaxaNames());
+		// the first and fourth cognate sets have the same pattern
+		assertEquals(5, alignment.getPatternCount());
+		assertEquals(6, alignment.getSiteCount());
+		assertArrayEquals(new int[] { 2, 1, 1, 1, 1 }, alignment.getWeights());
+		// codes of the default data type: "1" is 0, "0" is 1, "?" is 3
+		assertArrayEquals(new int[] { 0, 0, 1 }, alignment.getPattern(0));
+		assertArrayEquals(new int[] { 3, 1, 1 }, alignment.getPattern(4));
+
+		TipPresence presence = alignment.getTipPresence();
+		assertEquals(2, presence.getPresentCount(0));
+		assertEquals(0, presence.getPresentCount(4));
+		assertEquals(true, presence.isPresent(2, 3));
+	}
+
+	@Test
+	public void testCsv() throws IOException {
+		assertMatrix(load(writeCsv(), "header", true));
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		assertMatrix(load(writeBinary()));
+	}
+
+	/**
+	 * Map only a few bytes at a time, so that names, cells and rows cross
+	 * the window boundaries.
+	 */
+	private static CognateMatrixAlignment smallWindows() {
+		CognateMatrixAlignment alignment = new CognateMatrixAlignment();
+		alignment.windowSize = 5;
+		return alignment;
+	}
+
+	@Test
+	public void testCsvInSmallWindows() throws IOException {
+		assertMatrix(load(smallWindows(), writeCsv(), "header", true));
+	}
+
+	@Test
+	public void testBinaryInSmallWindows() throws IOException {
+		assertMatrix(load(smallWindows(), writeBinary()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRaggedCsv() throws IOException {
+		File file = folder.newFile("ragged.csv");
+		PrintWriter writer = new PrintWriter(file);
+		writer.print("A,1,0\nB,1\n");
+		writer.close();
+		load(file);
+	}
+}
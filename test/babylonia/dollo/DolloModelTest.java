@@ -27,13 +27,17 @@
 package babylonia.dollo;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import babylonia.dollo.ObservationProcessStatistics.Phase;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.Sequence;
@@ -51,15 +55,18 @@ abstract public class DolloModelTest {
 	private RealParameter lambda;
 	private RealParameter mu;
 	private Double expectedLikelihood;
+	private Tree tree;
+	private Alignment alignment;
+	private SiteModel sites;
 	protected AnyTipObservationProcess dollo;
 
 	public DolloModelTest(Integer observation1, Integer observation2, Double aliveInEquilibrium, Double lambda,
 			Double mu, Double likelihood) {
-		Tree tree = new TreeParser("(A:1,B:1):1");
+		tree = new TreeParser("(A:1,B:1):1");
 		observations = new int[] { observation1, observation2 };
 		Sequence s1 = new Sequence("A", String.valueOf(observations[0]));
 		Sequence s2 = new Sequence("B", String.valueOf(observations[1]));
-		Alignment alignment = new Alignment();
+		alignment = new Alignment();
 		MutationDeathType dtype = new MutationDeathType();
 		dtype.initByName("extantCode", "1");
 		alignment.initByName("sequence", Arrays.asList(new Sequence[] { s1, s2 }), "userDataType", dtype);
@@ -68,8 +75,7 @@ abstract public class DolloModelTest {
 		this.mu = new RealParameter(new Double[] { mu });
 		RealParameter zero = new RealParameter(new Double[] { 1e-11 });
 
-		dollo = new AnyTipObservationProcess();
-		SiteModel sites = new SiteModel();
+		sites = new SiteModel();
 		MutationDeathModel subst = new MutationDeathModel();
 		// NOTE: The encoding of the basic MutationDeatType is "1"→0 and
 		// "0"→1, and the frequencies are noted in ENCODING order, not in
@@ -79,12 +85,24 @@ abstract public class DolloModelTest {
 				new RealParameter(new Double[] { aliveInEquilibrium, 1.0 - aliveInEquilibrium }));
 		subst.initByName("frequencies", freq, "deathprob", zero);
 		sites.initByName("shape", "1.0", "substModel", subst);
-		dollo.initByName("tree", tree, "data", alignment, "siteModel", sites, "branchRateModel", new StrictClockModel(),
-				"mu", this.mu, "lam", this.lambda, "integrateGainRate", true);
+		dollo = createObservationProcess();
 
 		expectedLikelihood = likelihood;
 	}
 
+	protected AnyTipObservationProcess createObservationProcess(Object... extraInputs) {
+		return createObservationProcess(alignment, extraInputs);
+	}
+
+	protected AnyTipObservationProcess createObservationProcess(Alignment data, Object... extraInputs) {
+		AnyTipObservationProcess process = new AnyTipObservationProcess();
+		List<Object> inputs = new ArrayList<Object>(Arrays.asList("tree", tree, "data", data, "siteModel", sites,
+				"branchRateModel", new StrictClockModel(), "mu", this.mu, "lam", this.lambda, "integrateGainRate", true));
+		inputs.addAll(Arrays.asList(extraInputs));
+		process.initByName(inputs.toArray());
+		return process;
+	}
+
 	@Test
 	public void testTrivialNodePartials() {
 
@@ -104,4 +122,71 @@ abstract public class DolloModelTest {
 	public void testCalculateLogP() {
 		assertEquals(expectedLikelihood, Math.exp(dollo.calculateLogP()), 1e-8);
 	}
+
+	@Test
+	public void testMrcaPathsCalculateLogP() {
+		AnyTipObservationProcess mrcaDollo = createObservationProcess("mrcaPaths", true);
+		assertEquals(dollo.calculateLogP(), mrcaDollo.calculateLogP(), 0.0);
+	}
+
+	@Test
+	public void testThreadsCalculateLogP() {
+		AnyTipObservationProcess threadedDollo = createObservationProcess("threads", 3);
+		assertEquals(dollo.calculateLogP(), threadedDollo.calculateLogP(), 1e-12);
+		AnyTipObservationProcess threadedMrcaDollo = createObservationProcess("threads", 3, "mrcaPaths", true);
+		assertEquals(dollo.calculateLogP(), threadedMrcaDollo.calculateLogP(), 1e-12);
+	}
+
+	@Test
+	public void testScaledCalculateLogP() {
+		AnyTipObservationProcess scaledDollo = createObservationProcess("scaledAccumulation", true);
+		assertTrue(scaledDollo.isUsingScaling());
+		assertEquals(dollo.calculateLogP(), scaledDollo.calculateLogP(), 1e-10);
+	}
+
+	@Test
+	public void testSinglePrecisionCalculateLogP() {
+		AnyTipObservationProcess floatDollo = createObservationProcess("singlePrecision", true);
+		assertEquals(dollo.calculateLogP(), floatDollo.calculateLogP(), 1e-6);
+		AnyTipObservationProcess floatMrcaDollo = createObservationProcess("singlePrecision", true, "mrcaPaths", true);
+		assertEquals(dollo.calculateLogP(), floatMrcaDollo.calculateLogP(), 1e-6);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSinglePrecisionThreads() {
+		createObservationProcess("singlePrecision", true, "threads", 3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testScaledAccumulationThreads() {
+		createObservationProcess("scaledAccumulation", true, "threads", 3);
+	}
+
+	@Test
+	public void testStatistics() {
+		ObservationProcessStatistics statistics = new ObservationProcessStatistics();
+		statistics.initByName("jmx", false);
+		AnyTipObservationProcess countedDollo = createObservationProcess("statistics", statistics);
+		assertEquals(dollo.calculateLogP(), countedDollo.calculateLogP(), 0.0);
+		// nothing changed, so the second call only reads the caches
+		countedDollo.calculateLogP();
+		for (Phase phase : new Phase[] { Phase.PEELING, Phase.TREE_WEIGHT, Phase.ACCUMULATION, Phase.ASCERTAINMENT }) {
+			assertEquals(1, statistics.getCount(phase));
+		}
+		assertEquals(0.5, statistics.getTreeWeightHitRate(), 0.0);
+	}
+
+	@Test
+	public void testAbsentPatternProbability() {
+		Alignment absent = new Alignment();
+		MutationDeathType dtype = new MutationDeathType();
+		dtype.initByName("extantCode", "1");
+		absent.initByName("sequence", Arrays.asList(new Sequence[] { new Sequence("A", "0"), new Sequence("B", "0") }),
+				"userDataType", dtype);
+		AnyTipObservationProcess absentDollo = createObservationProcess(absent);
+		absentDollo.calculateLogP();
+		double[] freqs = sites.substModelInput.get().getFrequencies();
+		assertEquals(absentDollo.cumLike[0],
+				absentDollo.getAbsentPatternProbability(freqs, absentDollo.getNodeSurvivalProbabilities()), 1e-12);
+	}
 }
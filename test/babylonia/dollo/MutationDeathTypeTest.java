@@ -0,0 +1,96 @@
+/*
+ * MutationDeathTypeTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import beast.evolution.datatype.Binary;
+
+public class MutationDeathTypeTest {
+
+	private static MutationDeathType extantCodeType() {
+		MutationDeathType dtype = new MutationDeathType();
+		dtype.initByName("extantCode", "1");
+		return dtype;
+	}
+
+	private static MutationDeathType binaryBasedType() {
+		Binary binary = new Binary();
+		binary.initAndValidate();
+		MutationDeathType dtype = new MutationDeathType();
+		dtype.initByName("dataType", binary, "deathChar", "D");
+		return dtype;
+	}
+
+	@Test
+	public void testEncode() {
+		MutationDeathType dtype = extantCodeType();
+		assertArrayEquals(new byte[] { 0, 1, 2, 3 }, dtype.encode("10-?"));
+		// whitespace is skipped
+		assertArrayEquals(new byte[] { 0, 1, 0 }, dtype.encode(" 1\t0\n1 "));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeUnknownCharacter() {
+		extantCodeType().encode("10x");
+	}
+
+	@Test
+	public void testString2State() {
+		MutationDeathType dtype = extantCodeType();
+		assertEquals(Arrays.asList(0, 1, 2, 3, 0), dtype.string2state("10-? 1"));
+	}
+
+	@Test
+	public void testBaseDataType() {
+		MutationDeathType dtype = binaryBasedType();
+		assertEquals(3, dtype.getStateCount());
+		assertEquals(2, dtype.DEATHSTATE);
+		assertArrayEquals(new int[] { 2 }, dtype.getStatesForCode(0));
+		assertArrayEquals(new int[] { 0 }, dtype.getStatesForCode(1));
+		assertArrayEquals(new int[] { 1 }, dtype.getStatesForCode(2));
+		// lower case letters stand for upper case ones
+		assertArrayEquals(new byte[] { 0, 1, 2, 0 }, dtype.encode("D01d"));
+	}
+
+	@Test
+	public void testDeathCodes() {
+		boolean[] deathCodes = extantCodeType().getDeathCodes();
+		// "1", "0", "-" and "?"
+		assertEquals(4, deathCodes.length);
+		assertEquals(false, deathCodes[0]);
+		assertEquals(true, deathCodes[1]);
+		assertEquals(true, deathCodes[2]);
+		assertEquals(true, deathCodes[3]);
+		assertEquals(true, binaryBasedType().getDeathCodes()[0]);
+	}
+}
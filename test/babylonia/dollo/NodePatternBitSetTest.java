@@ -0,0 +1,72 @@
+/*
+ * NodePatternBitSetTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NodePatternBitSetTest {
+
+	@Test
+	public void testSetAcrossWordBoundaries() {
+		NodePatternBitSet bitSet = new NodePatternBitSet(3, 130);
+		assertEquals(3, bitSet.getWordsPerNode());
+		bitSet.set(1, 63, true);
+		bitSet.set(1, 64, true);
+		bitSet.set(2, 129, true);
+		assertTrue(bitSet.get(1, 63));
+		assertTrue(bitSet.get(1, 64));
+		assertFalse(bitSet.get(0, 63));
+		assertFalse(bitSet.get(2, 1));
+		assertTrue(bitSet.get(2, 129));
+		assertEquals(1L << 63, bitSet.getWord(1, 0));
+		assertEquals(1L, bitSet.getWord(1, 1));
+	}
+
+	@Test
+	public void testRestoreUndoesChangesSinceStore() {
+		NodePatternBitSet bitSet = new NodePatternBitSet(2, 10);
+		bitSet.set(0, 3, true);
+		bitSet.store();
+
+		bitSet.set(0, 3, false);
+		bitSet.set(1, 5, true);
+		bitSet.restore();
+		assertTrue(bitSet.get(0, 3));
+		assertFalse(bitSet.get(1, 5));
+
+		// accepted changes survive the next store/restore cycle
+		bitSet.set(1, 7, true);
+		bitSet.store();
+		bitSet.restore();
+		assertTrue(bitSet.get(1, 7));
+		assertTrue(bitSet.get(0, 3));
+	}
+}
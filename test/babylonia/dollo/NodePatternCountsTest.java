@@ -0,0 +1,65 @@
+/*
+ * NodePatternCountsTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NodePatternCountsTest {
+
+	private static void checkRestoreUndoesChangesSinceStore(int maxCount) {
+		NodePatternCounts counts = new NodePatternCounts(2, 10, maxCount);
+		counts.set(0, 3, maxCount);
+		counts.store();
+
+		counts.set(0, 3, 1);
+		counts.set(1, 5, maxCount - 1);
+		assertEquals(1, counts.get(0, 3));
+		assertEquals(maxCount - 1, counts.get(1, 5));
+		counts.restore();
+		assertEquals(maxCount, counts.get(0, 3));
+		assertEquals(0, counts.get(1, 5));
+
+		// accepted changes survive the next store/restore cycle
+		counts.set(1, 7, maxCount);
+		counts.store();
+		counts.restore();
+		assertEquals(maxCount, counts.get(1, 7));
+		assertEquals(maxCount, counts.get(0, 3));
+	}
+
+	@Test
+	public void testShortCounts() {
+		checkRestoreUndoesChangesSinceStore(Character.MAX_VALUE);
+	}
+
+	@Test
+	public void testIntCounts() {
+		checkRestoreUndoesChangesSinceStore(Character.MAX_VALUE + 1);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * ObservationProcessCacheTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+
+/**
+ * Store, move and restore tests of the caches of the observation process.
+ * After each move, a cache must match that of a process built from scratch
+ * on the new state, and after rejecting the move, that of the state before
+ * it.
+ */
+public class ObservationProcessCacheTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	/**
+	 * Make a series of height, narrow exchange, mu and clock moves, each
+	 * first rejected and then accepted, and compare the caches with
+	 * assertMatch(expected, actual) after every step.
+	 */
+	private static void checkMoves(BiConsumer<AnyTipObservationProcess, AnyTipObservationProcess> assertMatch) {
+		checkMoves(new ObservationProcessHarness(), assertMatch);
+	}
+
+	private static void checkMoves(ObservationProcessHarness harness,
+			BiConsumer<AnyTipObservationProcess, AnyTipObservationProcess> assertMatch) {
+		List<Runnable> moves = Arrays.asList(() -> harness.setHeight(harness.node("t0", "t1"), 1.25),
+				() -> harness.narrowExchange(harness.node("t2")),
+				() -> ObservationProcessHarness.scale(harness.mu, 1.5),
+				() -> ObservationProcessHarness.scale(harness.clockRate, 0.8),
+				() -> harness.setHeight(harness.node("t5", "t6"), 1.0),
+				() -> harness.narrowExchange(harness.node("t0", "t1")));
+		for (Runnable move : moves) {
+			AnyTipObservationProcess before = harness.freshProcess();
+			harness.propose(move);
+			assertMatch.accept(harness.freshProcess(), harness.process);
+			harness.reject();
+			assertMatch.accept(before, harness.process);
+
+			harness.propose(move);
+			harness.accept();
+			assertMatch.accept(harness.freshProcess(), harness.process);
+		}
+	}
+
+	@Test
+	public void testTipCountsBelow() {
+		checkMoves((expected, actual) -> {
+			for (int i = 0; i < expected.nodeCount; ++i) {
+				for (int j = 0; j < expected.patternCount; ++j) {
+					assertEquals(expected.extantInTipsBelow.get(i, j), actual.extantInTipsBelow.get(i, j));
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testMrcaPaths() {
+		AnyTipObservationProcess process = new ObservationProcessHarness("mrcaPaths", true).process;
+		assertArrayEquals(new ObservationProcessHarness().process.patternMrca, process.patternMrca);
+		// no node x pattern structures besides the site likelihoods
+		assertNull(process.extantInTipsBelow);
+		assertNull(process.nodePatternInclusion);
+
+		checkMoves(new ObservationProcessHarness("mrcaPaths", true), (expected, actual) -> {
+			assertArrayEquals(expected.patternMrca, actual.patternMrca);
+			assertEquals(expected.calculateLogP(), actual.calculateLogP(), TOLERANCE);
+		});
+	}
+
+	@Test
+	public void testSiteLikelihoods() {
+		checkMoves((expected, actual) -> {
+			for (int i = 0; i < expected.nodeCount; ++i) {
+				for (int j = 0; j < expected.patternCount; ++j) {
+					final boolean included = expected.nodePatternInclusion.get(i, j);
+					assertEquals(included, actual.nodePatternInclusion.get(i, j));
+					if (included) {
+						// the site likelihoods of excluded patterns are never read
+						assertEquals(expected.nodeSiteLikelihoods.get(i, j), actual.nodeSiteLikelihoods.get(i, j),
+								TOLERANCE);
+					}
+				}
+			}
+			assertEquals(expected.calculateLogP(), actual.calculateLogP(), TOLERANCE);
+		});
+	}
+
+	@Test
+	public void testPostOrder() {
+		checkMoves((expected, actual) -> assertArrayEquals(expected.getPostOrderNodeList(),
+				actual.getPostOrderNodeList()));
+	}
+
+	@Test
+	public void testFlatTree() {
+		checkMoves((expected, actual) -> {
+			final FlatTree expectedTree = expected.getFlatTree();
+			final FlatTree actualTree = actual.getFlatTree();
+			assertEquals(expectedTree.getRoot(), actualTree.getRoot());
+			for (int i = 0; i < expected.nodeCount; ++i) {
+				assertEquals(expectedTree.getParent(i), actualTree.getParent(i));
+				assertArrayEquals(children(expectedTree, i), children(actualTree, i));
+				assertEquals(expectedTree.getBranchLength(i), actualTree.getBranchLength(i), TOLERANCE);
+				assertEquals(expectedTree.getBranchRate(i), actualTree.getBranchRate(i), TOLERANCE);
+			}
+		});
+	}
+
+	private static int[] children(FlatTree tree, int i) {
+		int[] children = new int[tree.getChildCount(i)];
+		for (int c = 0; c < children.length; ++c) {
+			children[c] = tree.getChild(i, c);
+		}
+		Arrays.sort(children);
+		return children;
+	}
+
+	@Test
+	public void testSurvival() {
+		checkMoves((expected, actual) -> {
+			assertArrayEquals(expected.getNodeSurvivalProbabilities(), actual.getNodeSurvivalProbabilities(),
+					TOLERANCE);
+			assertArrayEquals(expected.getLogNodeSurvivalProbabilities(),
+					actual.getLogNodeSurvivalProbabilities(), TOLERANCE);
+		});
+	}
+}
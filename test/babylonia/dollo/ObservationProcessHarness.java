@@ -0,0 +1,239 @@
+/*
+ * ObservationProcessHarness.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.MutationDeathModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+/**
+ * An AnyTip observation process on an 8-tip tree, taken through MCMC steps
+ * the way MCMC does it: store the state and the process, propose a move,
+ * let the process find out what changed, calculate, and accept or reject.
+ * The caches the process updates incrementally can then be compared with
+ * those of a process built from scratch on the same state.
+ */
+public class ObservationProcessHarness {
+
+	private static final String NEWICK = "((((t0:1,t1:1):0.5,t2:1.5):1,(t3:0.75,t4:0.75):1.75):0.5,"
+			+ "((t5:2,t6:2):0.5,t7:2.5):0.5);";
+	private static final String[] ROWS = { "110110101101", "101110?10011", "011100110101", "100011101110",
+			"1?0011011010", "010101100111", "001011010110", "010000111001" };
+
+	public final Tree tree;
+	public final Alignment data;
+	public final SiteModel siteModel;
+	public final RealParameter mu;
+	public final RealParameter lam;
+	public final RealParameter clockRate;
+	public final AnyTipObservationProcess process;
+	private final Object[] extraInputs;
+
+	/**
+	 * A process with a site model without rate heterogeneity.
+	 */
+	public ObservationProcessHarness(Object... extraInputs) {
+		this(siteModel(0), extraInputs);
+	}
+
+	public ObservationProcessHarness(SiteModel siteModel, Object... extraInputs) {
+		this.tree = new TreeParser(NEWICK);
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		for (int i = 0; i < ROWS.length; ++i) {
+			sequences.add(new Sequence("t" + i, ROWS[i]));
+		}
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		this.data = new Alignment();
+		this.data.initByName("sequence", sequences, "userDataType", dataType);
+		this.siteModel = siteModel;
+		this.mu = new RealParameter(new Double[] { 0.5 });
+		this.lam = new RealParameter(new Double[] { 2.0 });
+		this.clockRate = new RealParameter(new Double[] { 1.0 });
+		this.extraInputs = extraInputs;
+		this.process = newProcess();
+		this.process.calculateLogP();
+		clean();
+	}
+
+	/**
+	 * @return a site model with gammaCategoryCount rate categories, or
+	 *         without rate heterogeneity if it is 0
+	 */
+	public static SiteModel siteModel(int gammaCategoryCount) {
+		Frequencies freq = new Frequencies();
+		freq.initByName("frequencies", new RealParameter(new Double[] { 0.4, 0.6 }));
+		MutationDeathModel subst = new MutationDeathModel();
+		subst.initByName("frequencies", freq, "deathprob", new RealParameter(new Double[] { 0.5 }));
+		SiteModel sites = new SiteModel();
+		if (gammaCategoryCount > 0) {
+			sites.initByName("substModel", subst, "gammaCategoryCount", gammaCategoryCount, "shape",
+					new RealParameter(new Double[] { 0.5 }));
+		} else {
+			sites.initByName("substModel", subst);
+		}
+		return sites;
+	}
+
+	private AnyTipObservationProcess newProcess() {
+		AnyTipObservationProcess newProcess = new AnyTipObservationProcess();
+		List<Object> inputs = new ArrayList<Object>(Arrays.asList("tree", tree, "data", data, "siteModel",
+				siteModel, "branchRateModel", new RateClock(clockRate), "mu", mu, "lam", lam, "integrateGainRate",
+				false));
+		inputs.addAll(Arrays.asList(extraInputs));
+		newProcess.initByName(inputs.toArray());
+		return newProcess;
+	}
+
+	/**
+	 * @return a process built from scratch on the current state, with its
+	 *         log likelihood calculated
+	 */
+	public AnyTipObservationProcess freshProcess() {
+		AnyTipObservationProcess freshProcess = newProcess();
+		freshProcess.calculateLogP();
+		return freshProcess;
+	}
+
+	/**
+	 * Store, make the move, and recalculate.
+	 * 
+	 * @return the log likelihood after the move
+	 */
+	public double propose(Runnable move) {
+		tree.store();
+		mu.store();
+		lam.store();
+		clockRate.store();
+		process.store();
+		move.run();
+		process.requiresRecalculation();
+		return process.calculateLogP();
+	}
+
+	public void accept() {
+		clean();
+	}
+
+	public void reject() {
+		tree.restore();
+		mu.restore();
+		lam.restore();
+		clockRate.restore();
+		process.restore();
+		clean();
+	}
+
+	private void clean() {
+		tree.setEverythingDirty(false);
+		mu.setEverythingDirty(false);
+		lam.setEverythingDirty(false);
+		clockRate.setEverythingDirty(false);
+	}
+
+	/**
+	 * @return the most recent common ancestor of the tips of taxa. Restoring
+	 *         the tree replaces its nodes, so look nodes up inside moves.
+	 */
+	public Node node(String... taxa) {
+		Node node = null;
+		for (Node tip : tree.getExternalNodes()) {
+			if (tip.getID().equals(taxa[0])) {
+				node = tip;
+			}
+		}
+		while (!coversTaxa(node, taxa)) {
+			node = node.getParent();
+		}
+		return node;
+	}
+
+	private static boolean coversTaxa(Node node, String[] taxa) {
+		List<String> below = new ArrayList<String>();
+		for (Node tip : node.getAllLeafNodes()) {
+			below.add(tip.getID());
+		}
+		return below.containsAll(Arrays.asList(taxa));
+	}
+
+	public void setHeight(Node node, double height) {
+		node.setHeight(height);
+		tree.setSomethingIsDirty(true);
+	}
+
+	/**
+	 * Swap node with its parent's sibling, as the narrow exchange operator
+	 * does.
+	 */
+	public void narrowExchange(Node node) {
+		Node parent = node.getParent();
+		Node grandParent = parent.getParent();
+		Node uncle = (grandParent.getLeft() == parent ? grandParent.getRight() : grandParent.getLeft());
+		if (uncle.getHeight() >= parent.getHeight()) {
+			throw new IllegalArgumentException("The sibling of the parent of node " + node.getNr() + " is too old");
+		}
+		parent.removeChild(node);
+		grandParent.removeChild(uncle);
+		parent.addChild(uncle);
+		grandParent.addChild(node);
+		parent.makeDirty(Tree.IS_FILTHY);
+		grandParent.makeDirty(Tree.IS_FILTHY);
+		node.makeDirty(Tree.IS_FILTHY);
+		uncle.makeDirty(Tree.IS_FILTHY);
+		tree.setSomethingIsDirty(true);
+	}
+
+	public static void scale(RealParameter parameter, double factor) {
+		parameter.setValue(0, parameter.getValue(0) * factor);
+	}
+
+	/**
+	 * A strict clock that is dirty while its rate is, as State would mark it
+	 * before asking the process whether it needs recalculation.
+	 */
+	private static class RateClock extends StrictClockModel {
+		RateClock(RealParameter rate) {
+			initByName("clock.rate", rate);
+		}
+
+		@Override
+		public boolean isDirtyCalculation() {
+			return meanRateInput.get().somethingIsDirty();
+		}
+	}
+}
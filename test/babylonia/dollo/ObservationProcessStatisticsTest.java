@@ -0,0 +1,85 @@
+/*
+ * ObservationProcessStatisticsTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+
+import org.junit.Test;
+
+public class ObservationProcessStatisticsTest {
+
+	private static ObservationProcessStatistics create(Object... inputs) {
+		ObservationProcessStatistics statistics = new ObservationProcessStatistics();
+		statistics.setID("statistics");
+		statistics.initByName(inputs);
+		return statistics;
+	}
+
+	@Test
+	public void testRegisteredUntilUnregistered() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		PrintStream out = new PrintStream(new ByteArrayOutputStream());
+		ObservationProcessStatistics first = create();
+		ObservationProcessStatistics second = create();
+		// registered before being logged
+		assertNotEquals(first.getObjectName(), second.getObjectName());
+		assertTrue(server.isRegistered(first.getObjectName()));
+		assertTrue(server.isRegistered(second.getObjectName()));
+
+		// a logger closing, e.g. the screen logger, leaves the MBean in place
+		// for the other loggers
+		first.init(out);
+		first.close(out);
+		assertTrue(server.isRegistered(first.getObjectName()));
+
+		first.unregister();
+		assertNull(first.getObjectName());
+		assertTrue(server.isRegistered(second.getObjectName()));
+		second.unregister();
+		assertEquals(0, server.queryNames(null, null).stream()
+				.filter(name -> "babylonia.dollo".equals(name.getDomain())).count());
+	}
+
+	@Test
+	public void testNotRegisteredWithoutJmx() {
+		ObservationProcessStatistics statistics = create("jmx", false);
+		statistics.init(new PrintStream(new ByteArrayOutputStream()));
+		assertNull(statistics.getObjectName());
+		assertFalse(ManagementFactory.getPlatformMBeanServer().queryNames(null, null).stream()
+				.anyMatch(name -> "babylonia.dollo".equals(name.getDomain())));
+	}
+}
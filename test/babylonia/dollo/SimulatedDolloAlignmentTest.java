@@ -0,0 +1,144 @@
+/*
+ * SimulatedDolloAlignmentTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.MutationDeathModel;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+
+public class SimulatedDolloAlignmentTest {
+
+	private Tree tree;
+	private SiteModel sites;
+	private RealParameter mu;
+	private MutationDeathType dtype;
+
+	@Before
+	public void setUp() {
+		Randomizer.setSeed(127);
+		tree = new TreeParser("((A:1,B:1):0.5,C:1.5):1");
+		mu = new RealParameter(new Double[] { 0.5 });
+		dtype = new MutationDeathType();
+		dtype.initByName("extantCode", "1");
+
+		// NOTE: The frequencies are in ENCODING order, "1" before "0".
+		Frequencies freq = new Frequencies();
+		freq.initByName("frequencies", new RealParameter(new Double[] { 0.9, 0.1 }));
+		MutationDeathModel subst = new MutationDeathModel();
+		subst.initByName("frequencies", freq, "deathprob", new RealParameter(new Double[] { 0.5 }));
+		sites = new SiteModel();
+		sites.initByName("shape", "1.0", "substModel", subst);
+	}
+
+	private SimulatedDolloAlignment simulate(Object... extraInputs) {
+		SimulatedDolloAlignment alignment = new SimulatedDolloAlignment();
+		Object[] inputs = new Object[] { "tree", tree, "siteModel", sites, "mu", mu, "userDataType", dtype };
+		Object[] allInputs = new Object[inputs.length + extraInputs.length];
+		System.arraycopy(inputs, 0, allInputs, 0, inputs.length);
+		System.arraycopy(extraInputs, 0, allInputs, inputs.length, extraInputs.length);
+		alignment.initByName(allInputs);
+		return alignment;
+	}
+
+	private static boolean isAbsent(Alignment alignment, int patternIndex) {
+		for (int taxon = 0; taxon < alignment.getTaxonCount(); ++taxon) {
+			if (alignment.getPattern(taxon, patternIndex) != 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void testTraitCount() {
+		Alignment alignment = simulate("traitCount", 1000);
+		assertEquals(3, alignment.getTaxonCount());
+		assertEquals(1000, alignment.getSiteCount());
+		int total = 0;
+		for (int j = 0; j < alignment.getPatternCount(); ++j) {
+			assertFalse(isAbsent(alignment, j));
+			total += alignment.getPatternWeight(j);
+		}
+		assertEquals(1000, total);
+		assertFalse(alignment.isAscertained);
+	}
+
+	@Test
+	public void testAbsentPattern() {
+		Alignment alignment = simulate("traitCount", 100, "absentPattern", true);
+		final int absent = alignment.getPatternCount() - 1;
+		assertTrue(alignment.isAscertained);
+		assertEquals(1, alignment.getExcludedPatternCount());
+		assertTrue(alignment.getExcludedPatternIndices().contains(absent));
+		assertTrue(isAbsent(alignment, absent));
+		assertEquals(0, alignment.getPatternWeight(absent));
+		assertEquals(100, alignment.getSiteCount());
+	}
+
+	/**
+	 * The patterns must come up as often as the observation process expects
+	 * them to, among the traits that are present in some tip.
+	 */
+	@Test
+	public void testPatternFrequencies() {
+		final int traitCount = 20000;
+		Alignment alignment = simulate("traitCount", traitCount);
+		AnyTipObservationProcess dollo = new AnyTipObservationProcess();
+		dollo.initByName("tree", tree, "data", alignment, "siteModel", sites, "branchRateModel",
+				new StrictClockModel(), "mu", mu, "integrateGainRate", true);
+		dollo.calculateLogP();
+		double[] freqs = sites.substModelInput.get().getFrequencies();
+		double[] survival = dollo.getNodeSurvivalProbabilities();
+		// summed over all patterns, a gain at each node gives probability 1
+		double observed = -dollo.getAbsentPatternProbability(freqs, survival);
+		for (double weight : survival) {
+			observed += weight;
+		}
+		double total = 0.0;
+		for (int j = 0; j < alignment.getPatternCount(); ++j) {
+			final double p = dollo.cumLike[j] / observed;
+			assertEquals(p, alignment.getPatternWeight(j) / (double) traitCount,
+					4 * Math.sqrt(p * (1 - p) / traitCount));
+			total += p;
+		}
+		// all observable patterns came up
+		assertEquals(1.0, total, 1e-10);
+	}
+}
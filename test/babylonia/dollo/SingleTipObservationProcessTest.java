@@ -0,0 +1,162 @@
+/*
+ * SingleTipObservationProcessTest.java
+ *
+ * Copyright (C) 2026 The babylonia contributors
+ *
+ * This file is part of the Beast2 package extension babylonia.
+ * See the COPYING file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * This package (just like Beast2) is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * The software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package babylonia.dollo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.MutationDeathModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+public class SingleTipObservationProcessTest {
+
+	private static final String TREE = "(((A:1,B:1):1,C:2):1,(D:1.5,E:1.5):1.5);";
+	private static final List<String> TAXA = Arrays.asList("A", "B", "C", "D", "E");
+	// codes of the extantCode data type: 0 is present, 1 is absent; one
+	// pattern per row, in the order of TAXA
+	private static final int[][] PATTERNS = { { 0, 1, 1, 1, 1 }, { 0, 0, 1, 1, 1 }, { 0, 1, 0, 1, 1 },
+			{ 0, 1, 1, 0, 0 }, { 1, 1, 1, 1, 1 }, { 1, 1, 0, 1, 1 } };
+	// the all-absent pattern, and one that is absent in the source A
+	private static final List<Integer> EXCLUDED = Arrays.asList(4, 5);
+
+	private static PatternAlignment alignment(List<String> taxa, int[][] patterns, List<Integer> excluded) {
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		int[] weights = new int[patterns.length];
+		Arrays.fill(weights, 1);
+		for (int patternIndex : excluded) {
+			weights[patternIndex] = 0;
+		}
+		PatternAlignment alignment = new PatternAlignment(taxa, dataType, patterns, weights);
+		alignment.setExcludedPatterns(excluded);
+		return alignment;
+	}
+
+	private static SingleTipObservationProcess process(Tree tree, PatternAlignment data, String source,
+			Object... extraInputs) {
+		Frequencies freq = new Frequencies();
+		freq.initByName("frequencies", new RealParameter(new Double[] { 0.5, 0.5 }));
+		MutationDeathModel subst = new MutationDeathModel();
+		subst.initByName("frequencies", freq, "deathprob", new RealParameter(new Double[] { 1e-11 }));
+		SiteModel sites = new SiteModel();
+		sites.initByName("substModel", subst);
+
+		SingleTipObservationProcess process = new SingleTipObservationProcess();
+		List<Object> inputs = new ArrayList<Object>(Arrays.asList("tree", tree, "data", data, "siteModel", sites,
+				"branchRateModel", new StrictClockModel(), "mu", new RealParameter(new Double[] { 0.5 }),
+				"integrateGainRate", true, "taxon", new Taxon(source)));
+		inputs.addAll(Arrays.asList(extraInputs));
+		process.initByName(inputs.toArray());
+		return process;
+	}
+
+	/**
+	 * @return the number of the most recent common ancestor of the tips
+	 */
+	private static int mrca(Tree tree, Set<String> tips) {
+		Node mrca = null;
+		for (Node tip : tree.getExternalNodes()) {
+			if (!tips.contains(tip.getID())) {
+				continue;
+			}
+			if (mrca == null) {
+				mrca = tip;
+				continue;
+			}
+			Set<Node> ancestors = new HashSet<Node>();
+			for (Node node = tip; node != null; node = node.getParent()) {
+				ancestors.add(node);
+			}
+			while (!ancestors.contains(mrca)) {
+				mrca = mrca.getParent();
+			}
+		}
+		return mrca.getNr();
+	}
+
+	@Test
+	public void testPatternMrca() {
+		Tree tree = new TreeParser(TREE);
+		SingleTipObservationProcess process = process(tree, alignment(TAXA, PATTERNS, EXCLUDED), "A");
+		for (int patternIndex = 0; patternIndex < PATTERNS.length; patternIndex++) {
+			Set<String> tips = new HashSet<String>();
+			for (int taxon = 0; taxon < TAXA.size(); taxon++) {
+				if (PATTERNS[patternIndex][taxon] == 0) {
+					tips.add(TAXA.get(taxon));
+				}
+			}
+			if (tips.isEmpty()) {
+				// the all-absent pattern is included at every node
+				assertEquals(-1, process.patternMrca[patternIndex]);
+			} else {
+				// the excluded pattern absent in the source A keeps the MRCA
+				// of its own tips, C, not that of C and A
+				assertEquals("pattern " + patternIndex, mrca(tree, tips), process.patternMrca[patternIndex]);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPatternAbsentInSource() {
+		int[][] patterns = { { 0, 1, 1, 1, 1 }, { 1, 0, 0, 1, 1 } };
+		process(new TreeParser(TREE), alignment(TAXA, patterns, new ArrayList<Integer>()), "A");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConditionOnPresence() {
+		// conditioning on any tip is wrong when the data are conditioned on
+		// the source tip
+		process(new TreeParser(TREE), alignment(TAXA, PATTERNS, EXCLUDED), "A", "conditionOnPresence", true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTipMissingFromData() {
+		Tree tree = new TreeParser("(((A:1,B:1):1,C:2):1,(D:1.5,F:1.5):1.5);");
+		process(tree, alignment(TAXA, PATTERNS, EXCLUDED), "A");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTaxonMissingFromTree() {
+		List<String> taxa = Arrays.asList("A", "B", "C", "D", "E", "F");
+		int[][] patterns = { { 0, 1, 1, 1, 1, 0 }, { 0, 0, 1, 1, 1, 1 } };
+		process(new TreeParser(TREE), alignment(taxa, patterns, new ArrayList<Integer>()), "A");
+	}
+}